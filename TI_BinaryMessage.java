@@ -0,0 +1,288 @@
+package org.thoughtcrime.securesms.trustedIntroductions;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.Base64;
+import org.signal.core.util.logging.Log;
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.InvalidKeyException;
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
+import org.whispersystems.signalservice.api.push.ServiceId;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.FINGERPRINT_HALF_LENGTH;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.SEGMENTS;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.TI_BINARY_MESSAGE_VERSION;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.UNDISCLOSED;
+
+/**
+ * Compact encoding of TI messages, @see TI_Utils.TI_BINARY_MESSAGE_VERSION.
+ *
+ * Layout, integers are unsigned varints, byte arrays and strings (UTF-8) are prefixed with their length as varint:
+ *   MAGIC, version (1 byte)
+ *   introducer entry
+ *   number of introducees
+ *   introducee entries
+ * where every entry is:
+ *   service id (binary, @see ServiceId.toByteArray), name, number (empty if undisclosed), identity key (serialized), safety number (packed, 2 digits per byte)
+ *
+ * The magic can never be confused with the start of TI_IDENTIFYER, which allows receivers to tell both formats apart by their first bytes.
+ */
+public final class TI_BinaryMessage {
+
+  private static final String TAG = String.format(TI_Utils.TI_LOG_TAG, Log.tag(TI_BinaryMessage.class));
+
+  static final byte[] MAGIC = { 'T', 'I', 0 };
+
+  private static final int FINGERPRINT_DIGITS = 2 * FINGERPRINT_HALF_LENGTH;
+  private static final int PACKED_FINGERPRINT_LENGTH = FINGERPRINT_DIGITS / 2;
+  // Anything longer is a malformed (or malicious) message.
+  private static final int MAX_FIELD_LENGTH = 1024;
+
+  private TI_BinaryMessage(){}
+
+  /**
+   * @param header the first MAGIC.length bytes of a message
+   * @return true if the header marks a binary message, regardless of version.
+   */
+  static boolean isBinaryMessage(@NonNull byte[] header){
+    if (header.length < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (header[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static class Writer {
+    private final OutputStream out;
+
+    /**
+     * @param out is buffered by the writer, not closed.
+     */
+    Writer(@NonNull OutputStream out){
+      this.out = new BufferedOutputStream(out);
+    }
+
+    void writeHeader() throws IOException {
+      out.write(MAGIC);
+      out.write(TI_BINARY_MESSAGE_VERSION);
+    }
+
+    void writeCount(int count) throws IOException {
+      writeVarint(count);
+    }
+
+    /**
+     * @throws IOException if the entry has no (valid) service id, the binary format cannot carry an undisclosed one.
+     */
+    void writeEntry(@NonNull TI_Utils.MessageEntry entry) throws IOException {
+      ServiceId serviceId = UNDISCLOSED.equals(entry.serviceId) ? null : ServiceId.parseOrNull(entry.serviceId);
+      if (serviceId == null) {
+        throw new IOException("Invalid service ID for binary TI_message: " + entry.serviceId);
+      }
+      writeBytes(serviceId.toByteArray());
+      writeString(entry.name);
+      writeString(UNDISCLOSED.equals(entry.number) ? "" : entry.number);
+      writeBytes(entry.identityKey.serialize());
+      out.write(packFingerprint(entry.predictedFingerprint));
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    private void writeString(@NonNull String s) throws IOException {
+      writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(@NonNull byte[] bytes) throws IOException {
+      writeVarint(bytes.length);
+      out.write(bytes);
+    }
+
+    private void writeVarint(int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+  }
+
+  /**
+   * PRE: the magic was already consumed from in.
+   * @param in positioned at the version byte, should be buffered. Not closed.
+   * @return true if the whole message was parsed, false if it has a different version.
+   * @throws IOException for malformed messages, introductions emitted before the error should be discarded.
+   */
+  @WorkerThread
+  static boolean parse(@NonNull InputStream in, long timestamp, @NonNull TI_MessageParser.Listener listener) throws IOException {
+    int version = readByte(in);
+    if (version != TI_BINARY_MESSAGE_VERSION) {
+      Log.e(TAG, "Invalid binary TI_message version: " + version + "\n\n--> The current version should be: " + TI_BINARY_MESSAGE_VERSION + "\n");
+      return false;
+    }
+    String introducerServiceId = readEntry(in, null, timestamp).getIntroduceeServiceId();
+    listener.onIntroducer(introducerServiceId);
+    int count = readVarint(in);
+    for (int i = 0; i < count; i++) {
+      listener.onIntroducee(readEntry(in, introducerServiceId, timestamp));
+    }
+    if (in.read() >= 0) {
+      throw new IOException("Trailing bytes after binary TI_message!");
+    }
+    return true;
+  }
+
+  private static @NonNull TI_Data readEntry(@NonNull InputStream in, String introducerServiceId, long timestamp) throws IOException {
+    ServiceId serviceId = ServiceId.parseOrNull(readBytes(in));
+    if (serviceId == null) {
+      throw new IOException("Invalid service ID in binary TI_message!");
+    }
+    String name   = readString(in);
+    String number = readString(in);
+    byte[] identityKey = readBytes(in);
+    try {
+      new IdentityKey(identityKey, 0);
+    } catch (InvalidKeyException e) {
+      throw new IOException("Invalid identity key in binary TI_message!", e);
+    }
+    byte[] packedFingerprint = new byte[PACKED_FINGERPRINT_LENGTH];
+    readFully(in, packedFingerprint);
+    return new TI_Data(null,
+                       TI_Database.State.PENDING,
+                       introducerServiceId,
+                       serviceId.toString(),
+                       name,
+                       number.isEmpty() ? UNDISCLOSED : number,
+                       Base64.encodeWithoutPadding(identityKey),
+                       unpackFormattedFingerprint(packedFingerprint),
+                       timestamp);
+  }
+
+  /**
+   * The packed safety number is also how TI_Database stores them.
+   * @param formatted as returned by TI_Utils.predictFingerprint
+   * @return the digits, two per byte, most significant nibble first.
+   */
+  public static @NonNull byte[] packFingerprint(@NonNull String formatted){
+    byte[] packed = packFingerprintOrNull(formatted);
+    if (packed == null) {
+      throw new AssertionError(TAG + " Malformed safety number: " + formatted);
+    }
+    return packed;
+  }
+
+  /**
+   * @return null if formatted is not a safety number.
+   */
+  public static @Nullable byte[] packFingerprintOrNull(@NonNull String formatted){
+    String digits = formatted.replace(" ", "");
+    if (digits.length() != FINGERPRINT_DIGITS) {
+      return null;
+    }
+    byte[] packed = new byte[PACKED_FINGERPRINT_LENGTH];
+    for (int i = 0; i < packed.length; i++) {
+      int high = digit(digits.charAt(2 * i));
+      int low  = digit(digits.charAt(2 * i + 1));
+      if (high < 0 || low < 0) {
+        return null;
+      }
+      packed[i] = (byte) ((high << 4) | low);
+    }
+    return packed;
+  }
+
+  /**
+   * @return the safety number formatted like TI_Utils.predictFingerprint does.
+   */
+  public static @NonNull String unpackFormattedFingerprint(@NonNull byte[] packed) throws IOException {
+    if (packed.length != PACKED_FINGERPRINT_LENGTH) {
+      throw new IOException("Packed safety number of length " + packed.length);
+    }
+    return TI_Utils.getFormattedSafetyNumbers(unpackFingerprint(packed), SEGMENTS);
+  }
+
+  static @NonNull String unpackFingerprint(@NonNull byte[] packed) throws IOException {
+    StringBuilder digits = new StringBuilder(FINGERPRINT_DIGITS);
+    for (byte b : packed) {
+      int high = (b >> 4) & 0x0F;
+      int low  = b & 0x0F;
+      if (high > 9 || low > 9) {
+        throw new IOException("Invalid safety number in binary TI_message!");
+      }
+      digits.append((char) ('0' + high)).append((char) ('0' + low));
+    }
+    return digits.toString();
+  }
+
+  /**
+   * @return -1 if c is not a digit.
+   */
+  private static int digit(char c){
+    if (c < '0' || c > '9') {
+      return -1;
+    }
+    return c - '0';
+  }
+
+  private static @NonNull String readString(@NonNull InputStream in) throws IOException {
+    return new String(readBytes(in), StandardCharsets.UTF_8);
+  }
+
+  private static @NonNull byte[] readBytes(@NonNull InputStream in) throws IOException {
+    int length = readVarint(in);
+    if (length > MAX_FIELD_LENGTH) {
+      throw new IOException("Field of length " + length + " in binary TI_message!");
+    }
+    byte[] bytes = new byte[length];
+    readFully(in, bytes);
+    return bytes;
+  }
+
+  private static int readVarint(@NonNull InputStream in) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = readByte(in);
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (result < 0) {
+          throw new IOException("Negative varint in binary TI_message!");
+        }
+        return result;
+      }
+    }
+    throw new IOException("Malformed varint in binary TI_message!");
+  }
+
+  private static int readByte(@NonNull InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException("Truncated binary TI_message!");
+    }
+    return b;
+  }
+
+  private static void readFully(@NonNull InputStream in, @NonNull byte[] buffer) throws IOException {
+    int read = 0;
+    while (read < buffer.length) {
+      int n = in.read(buffer, read, buffer.length - read);
+      if (n < 0) {
+        throw new EOFException("Truncated binary TI_message!");
+      }
+      read += n;
+    }
+  }
+}
@@ -34,6 +34,14 @@ data class TI_Data (val id: Long?, val state: TI_Database.State, val introducerS
     return this
   }
 
+  fun withState(newState: TI_Database.State): TI_Data {
+    return copy(state = newState)
+  }
+
+  fun withIntroducer(newIntroducerServiceId: String?): TI_Data {
+    return copy(introducerServiceId = newIntroducerServiceId)
+  }
+
   companion object Deserializer {
     // factory from serialized String
     fun deserialize(serialized: JSONObject): TI_Data {
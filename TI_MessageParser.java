@@ -0,0 +1,241 @@
+package org.thoughtcrime.securesms.trustedIntroductions;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
+import org.whispersystems.signalservice.api.push.ServiceId;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.IDENTITY_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.INTRODUCEE_DATA_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.INTRODUCER_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.NAME_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.NUMBER_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.PREDICTED_FINGERPRINT_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.SERVICE_ID_J;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.TI_IDENTIFYER;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.TI_MESSAGE_VERSION;
+import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.TI_VERSION_J;
+
+/**
+ * Pull parser for the content of .trustedIntroduction files.
+ * Checks the identifyer and version as they come in and hands out the introductions one by one,
+ * the message is never held in memory as a whole.
+ *
+ * Our own messages are written version first, then introducer, then introducees (@see TI_Utils.writeMessageBody), such that every introducee
+ * can be emitted as soon as it is read. Older clients wrote the keys in arbitrary order, introducees preceding the version or introducer are held back
+ * until both are known.
+ */
+public class TI_MessageParser {
+
+  private static final String TAG = String.format(TI_Utils.TI_LOG_TAG, Log.tag(TI_MessageParser.class));
+
+  public interface Listener {
+    /**
+     * Called once, before any introducee.
+     */
+    void onIntroducer(@NonNull String introducerServiceId);
+
+    /**
+     * Called for each introducee in the order they appear in the message.
+     * The introduction is PENDING and carries the name and number the introducer disclosed.
+     */
+    void onIntroducee(@NonNull TI_Data introduction);
+  }
+
+  /**
+   * Keeps everything it is handed.
+   */
+  public static class Collector implements Listener {
+    public @Nullable String        introducerServiceId;
+    public final     List<TI_Data> introductions = new ArrayList<>();
+
+    @Override public void onIntroducer(@NonNull String introducerServiceId){
+      this.introducerServiceId = introducerServiceId;
+    }
+
+    @Override public void onIntroducee(@NonNull TI_Data introduction){
+      introductions.add(introduction);
+    }
+  }
+
+  private final long     timestamp;
+  private final Listener listener;
+
+  private boolean          versionChecked;
+  private String           introducerServiceId;
+  private List<Introducee> heldBack = new ArrayList<>();
+
+  private TI_MessageParser(long timestamp, @NonNull Listener listener){
+    this.timestamp = timestamp;
+    this.listener = listener;
+  }
+
+  /**
+   * @param in the message, does not need to be buffered. Not closed by the parser.
+   * @param timestamp when the message was received
+   * @return true if the whole message was parsed, false if it is not a TI message or has a different version.
+   * @throws IOException for malformed messages, introductions emitted before the error should be discarded.
+   */
+  @WorkerThread
+  public static boolean parse(@NonNull Reader in, long timestamp, @NonNull Listener listener) throws IOException {
+    if (!hasIdentifyer(in)){
+      Log.w(TAG, "Message does not start with the TI identifyer, ignoring.");
+      return false;
+    }
+    return new TI_MessageParser(timestamp, listener).parseBody(new JsonReader(in));
+  }
+
+  /**
+   * Consumes exactly the identifyer from in.
+   */
+  private static boolean hasIdentifyer(@NonNull Reader in) throws IOException {
+    char[] header = new char[TI_IDENTIFYER.length()];
+    int    read   = 0;
+    while (read < header.length) {
+      int n = in.read(header, read, header.length - read);
+      if (n < 0) {
+        return false;
+      }
+      read += n;
+    }
+    return TI_IDENTIFYER.equals(new String(header));
+  }
+
+  private boolean parseBody(@NonNull JsonReader json) throws IOException {
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case TI_VERSION_J:
+          String version = json.nextString();
+          if (!TI_MESSAGE_VERSION.equals(version)) {
+            Log.e(TAG, "Invalid TI_message version: " + version + "\n\n--> The current version should be: " + TI_MESSAGE_VERSION + "\n");
+            return false;
+          }
+          versionChecked = true;
+          emitHeldBack();
+          break;
+        case INTRODUCER_J:
+          introducerServiceId = readIntroducerServiceId(json);
+          emitHeldBack();
+          break;
+        case INTRODUCEE_DATA_J:
+          json.beginArray();
+          while (json.hasNext()) {
+            Introducee introducee = readIntroducee(json);
+            if (heldBack == null) {
+              listener.onIntroducee(introducee.toTI_Data(introducerServiceId, timestamp));
+            } else {
+              heldBack.add(introducee);
+            }
+          }
+          json.endArray();
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+    if (!versionChecked) {
+      Log.e(TAG, "TI_message without version, the current version should be: " + TI_MESSAGE_VERSION);
+      return false;
+    }
+    if (introducerServiceId == null) {
+      throw new IOException("TI_message without introducer!");
+    }
+    return true;
+  }
+
+  private void emitHeldBack(){
+    if (heldBack == null || !versionChecked || introducerServiceId == null) {
+      return;
+    }
+    listener.onIntroducer(introducerServiceId);
+    for (Introducee introducee : heldBack) {
+      listener.onIntroducee(introducee.toTI_Data(introducerServiceId, timestamp));
+    }
+    heldBack = null;
+  }
+
+  private static @NonNull String readIntroducerServiceId(@NonNull JsonReader json) throws IOException {
+    if (json.peek() == JsonToken.STRING) {
+      // Tolerate the introducer being a serialized object.
+      return readIntroducerServiceId(new JsonReader(new StringReader(json.nextString())));
+    }
+    String serviceId = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      if (SERVICE_ID_J.equals(json.nextName())) {
+        serviceId = json.nextString();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+    if (serviceId == null) {
+      throw new IOException("Introducer without service ID!");
+    }
+    ServiceId parsed = ServiceId.parseOrNull(serviceId);
+    if (parsed == null) {
+      throw new IOException("Invalid introducer service ID: " + serviceId);
+    }
+    return parsed.toString();
+  }
+
+  private static @NonNull Introducee readIntroducee(@NonNull JsonReader json) throws IOException {
+    Introducee introducee = new Introducee();
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case SERVICE_ID_J:
+          introducee.serviceId = json.nextString();
+          break;
+        case NAME_J:
+          introducee.name = json.nextString();
+          break;
+        case NUMBER_J:
+          introducee.number = json.nextString();
+          break;
+        case IDENTITY_J:
+          introducee.identityKey = json.nextString();
+          break;
+        case PREDICTED_FINGERPRINT_J:
+          introducee.predictedFingerprint = json.nextString();
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+    if (introducee.serviceId == null || introducee.identityKey == null) {
+      throw new IOException("Introducee without service ID or identity key!");
+    }
+    if (introducee.name == null || introducee.number == null || introducee.predictedFingerprint == null) {
+      throw new IOException("Introducee without name, number or safety number!");
+    }
+    return introducee;
+  }
+
+  private static class Introducee {
+    String serviceId;
+    String name;
+    String number;
+    String identityKey;
+    String predictedFingerprint;
+
+    @NonNull TI_Data toTI_Data(@Nullable String introducerServiceId, long timestamp){
+      return new TI_Data(null, TI_Database.State.PENDING, introducerServiceId, serviceId, name, number, identityKey, predictedFingerprint, timestamp);
+    }
+  }
+}
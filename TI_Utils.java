@@ -1,57 +1,63 @@
 package org.thoughtcrime.securesms.trustedIntroductions;
 
 import android.annotation.SuppressLint;
+import android.util.JsonWriter;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
-import org.json.JSONException;
-import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.core.util.Base64;
+import org.signal.core.util.Stopwatch;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.libsignal.protocol.IdentityKey;
 import org.signal.libsignal.protocol.fingerprint.Fingerprint;
 import org.signal.libsignal.protocol.fingerprint.NumericFingerprintGenerator;
-import org.thoughtcrime.securesms.crypto.ReentrantSessionLock;
-import org.thoughtcrime.securesms.database.IdentityTable;
 import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.dependencies.AppDependencies;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
 import org.thoughtcrime.securesms.database.model.IdentityRecord;
-import org.thoughtcrime.securesms.jobs.MultiDeviceVerifiedUpdateJob;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_IdentityTable;
-import org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue;
 import org.thoughtcrime.securesms.trustedIntroductions.glue.RecipientTableGlue;
+import org.thoughtcrime.securesms.trustedIntroductions.jobs.TrustedIntroductionVerifiedStatusJob;
 import org.thoughtcrime.securesms.trustedIntroductions.jobs.TrustedIntroductionsReceiveJob;
 import org.thoughtcrime.securesms.recipients.LiveRecipient;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-import org.json.JSONObject;
-import org.json.JSONArray;
-import org.thoughtcrime.securesms.storage.StorageSyncHelper;
-import org.thoughtcrime.securesms.util.IdentityUtil;
-import org.whispersystems.signalservice.api.SignalSessionLock;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.signalservice.api.push.ServiceId;
-import org.whispersystems.signalservice.api.util.Preconditions;
 
 import static org.webrtc.ContextUtils.getApplicationContext;
 
@@ -68,12 +74,17 @@ public class TI_Utils {
   // TODO: this is currently only reflected in message format, would need to add this to Database to make
   // Backup/Restore work accross revisions
   public static final String TI_MESSAGE_VERSION = "2.0";
+  // Compact binary format, @see TI_BinaryMessage. Accepted next to TI_MESSAGE_VERSION.
+  public static final int TI_BINARY_MESSAGE_VERSION = 3;
+  // Clients older than 2.1.3 cannot read binary messages, keep sending json until they are phased out.
+  public static final boolean TI_SEND_BINARY = false;
   // Since the Signal version is still important and will not be overwritten I define my own
   // 1: major changes, 2: feature/ui changes , 3. bugs | stability fixes
   public static final String TI_APK_VERSION = "2.1.2";
   // text is the interim solution. In the future a custom mimetype should be used such that we can release a
   // custom interpreter that can be used by people that do not have the TI_extension installed.
   public static final String TI_MIME_TYPE = "text/plain";
+  public static final String TI_BINARY_MIME_TYPE = "application/octet-stream";
   public static final String TI_MESSAGE_EXTENSION = ".trustedIntroduction";
   public static final String TI_MESSAGE_FILENAME = "Signal" + TI_MESSAGE_EXTENSION;
 
@@ -93,6 +104,16 @@ public class TI_Utils {
   static final int ITERATIONS = 5200;
   // @See length of codes in VerifyDisplayFragment
   static final int SEGMENTS = 12;
+  // Each party contributes half of the 60 digit safety number, @see NumericFingerprintGenerator
+  static final int FINGERPRINT_HALF_LENGTH = 30;
+  static final int FINGERPRINT_CACHE_SIZE = 500;
+
+  // (stable identifier, identity key) -> that party's half of the safety number.
+  // Computing one half costs ITERATIONS rounds of SHA-512, but it only depends on that party, so introducing overlapping sets of contacts reuses them.
+  private static final LRUCache<String, String> FINGERPRINT_HALVES = new LRUCache<>(FINGERPRINT_CACHE_SIZE);
+  // Upper bound of threads computing introducee entries in parallel. Kept low and separate from SignalExecutors.BOUNDED to not starve it.
+  static final int FINGERPRINT_MAX_PARALLELISM = 4;
+  private static ForkJoinPool fingerprintPool;
 
   static final String UNDISCLOSED = "undisclosed";
 
@@ -115,46 +136,9 @@ public class TI_Utils {
   // How to format dates in introductions:
   @SuppressLint("SimpleDateFormat") public static final SimpleDateFormat INTRODUCTION_DATE_PATTERN = new SimpleDateFormat("yyyy/MM/dd hh:mm:ss");
 
-  /**
-   * /@see ManageListFragment::getFiltered()
-   *
-   * @param timestamp the timestamp as long
-   * @return The date in 6 parts, in order of the format string, as strings
-   */
-  public static @NonNull TimestampDateParts splitIntroductionDate(long timestamp){
-    String date = INTRODUCTION_DATE_PATTERN.format(timestamp);
-    String[] dateTime = date.split(" ");
-    String[] dateParts = dateTime[0].split("/");
-    String[] timeParts = dateTime[1].split(":");
-    return new TimestampDateParts(dateParts[0],
-                                  dateParts[1],
-                                  dateParts[2],
-                                  timeParts[0],
-                                  timeParts[1],
-                                  timeParts[2]);
-  }
-
-  public static class TimestampDateParts {
-    public String year;
-    public String month;
-    public String day;
-    public String hours;
-    public String minutes;
-    public String seconds;
-
-    public TimestampDateParts(String year, String month, String day, String hours, String minutes, String seconds){
-      this.year = year;
-      this.month = month;
-      this.day = day;
-      this.hours = hours;
-      this.minutes = minutes;
-      this.seconds = seconds;
-    }
-  }
-
   //@see VerifyDisplayFragment
-  private static @NonNull String getFormattedSafetyNumbers(@NonNull Fingerprint fingerprint, int segmentCount) {
-    String[]      segments = getSegments(fingerprint, segmentCount);
+  static @NonNull String getFormattedSafetyNumbers(@NonNull String digits, int segmentCount) {
+    String[]      segments = getSegments(digits, segmentCount);
     StringBuilder result   = new StringBuilder();
 
     for (int i = 0; i < segments.length; i++) {
@@ -169,9 +153,8 @@ public class TI_Utils {
   }
 
   //@see VerifyDisplayFragment
-  private static String[] getSegments(Fingerprint fingerprint, int segmentCount) {
+  private static String[] getSegments(String digits, int segmentCount) {
     String[] segments = new String[segmentCount];
-    String   digits   = fingerprint.getDisplayableFingerprint().getDisplayText();
     int      partSize = digits.length() / segmentCount;
 
     for (int i = 0; i < segmentCount; i++) {
@@ -181,6 +164,68 @@ public class TI_Utils {
     return segments;
   }
 
+  private static String fingerprintCacheKey(byte[] stableIdentifier){
+    return Base64.encodeWithPadding(stableIdentifier) + ":";
+  }
+
+  /**
+   * Computes (or fetches from the cache) one party's half of a safety number.
+   * The generator offers no way to compute a single half, so we pair the party with itself and take the first half of the result.
+   * @param stableIdentifier the identifier bytes of the party, as they would be passed to the generator.
+   * @param identityKey the identity key of the party.
+   * @return the 30 digits contributed by this party.
+   */
+  private static String getFingerprintHalf(byte[] stableIdentifier, IdentityKey identityKey){
+    String cacheKey = fingerprintCacheKey(stableIdentifier) + encodeIdentityKey(identityKey);
+    synchronized (FINGERPRINT_HALVES) {
+      String cached = FINGERPRINT_HALVES.get(cacheKey);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    String half = computeFingerprintHalf(stableIdentifier, identityKey);
+    synchronized (FINGERPRINT_HALVES) {
+      FINGERPRINT_HALVES.put(cacheKey, half);
+    }
+    return half;
+  }
+
+  /**
+   * Uncached, only depends on libsignal. This is where the time of predictFingerprint goes.
+   * @see #getFingerprintHalf(byte[], IdentityKey)
+   */
+  @VisibleForTesting
+  static @NonNull String computeFingerprintHalf(@NonNull byte[] stableIdentifier, @NonNull IdentityKey identityKey){
+    // Only version 2 is used since the migration to usernames
+    Fingerprint fingerprint = new NumericFingerprintGenerator(ITERATIONS).createFor(2, stableIdentifier, identityKey, stableIdentifier, identityKey);
+    return fingerprint.getDisplayableFingerprint().getDisplayText().substring(0, FINGERPRINT_HALF_LENGTH);
+  }
+
+  /**
+   * Like in DisplayableFingerprint, the smaller half always comes first.
+   * @return the formatted safety number made up of both halves.
+   */
+  @VisibleForTesting
+  static @NonNull String combineFingerprintHalves(@NonNull String oneHalf, @NonNull String otherHalf){
+    String digits = oneHalf.compareTo(otherHalf) <= 0 ? oneHalf + otherHalf
+                                                     : otherHalf + oneHalf;
+    return getFormattedSafetyNumbers(digits, SEGMENTS).replace("\n", "");
+  }
+
+  /**
+   * Drops all cached safety number halves of this service id. Called when their identity key changes.
+   * Entries are keyed by identity key as well, so this only frees memory and never affects correctness.
+   * @param serviceId the service id whose identity changed.
+   */
+  public static void invalidateFingerprintCache(@NonNull String serviceId){
+    // predictFingerprint uses both the binary and the string representation of service ids as stable identifiers.
+    String binaryPrefix = fingerprintCacheKey(ServiceId.parseOrThrow(serviceId).toByteArray());
+    String stringPrefix = fingerprintCacheKey(serviceId.getBytes());
+    synchronized (FINGERPRINT_HALVES) {
+      FINGERPRINT_HALVES.keySet().removeIf(key -> key.startsWith(binaryPrefix) || key.startsWith(stringPrefix));
+    }
+  }
+
   /**
    * Recreates the safety number that is generated between two recipients.
    * (used when sending intro, and to conveniently compute difference on conflict to expose in UI)
@@ -208,7 +253,6 @@ public class TI_Utils {
     byte[] introduceeFingerprintId;
     LiveRecipient live = Recipient.live(introductionRecipientId);
     Recipient introductionRecipientResolved = live.resolve();
-    NumericFingerprintGenerator generator = new NumericFingerprintGenerator(ITERATIONS);
     Log.i(TAG, "using " + introductionRecipientResolved.requireServiceId());
     introductionRecipientFingerprintId = introductionRecipientResolved.requireServiceId().toByteArray();
     introduceeFingerprintId = introduceeServiceId.getBytes();
@@ -223,13 +267,8 @@ public class TI_Utils {
     // @see VerifyDisplayFragment::initializeFingerprint(), iterations there also hardcoded to 5200 for FingerprintGenerator
     // @see ServiceId.java to understand how they convert the ACI to ByteArray
     // @see IdentityKey.java
-    // Only version 2 is used since the migration to usernames
-    Fingerprint fingerprint = generator.createFor(2,
-                                                  introductionRecipientFingerprintId,
-                                                  introductionRecipientIdentityKey,
-                                                  introduceeFingerprintId,
-                                                  introduceeIdentityKey);
-    return getFormattedSafetyNumbers(fingerprint, SEGMENTS).replace("\n", "");
+    return combineFingerprintHalves(getFingerprintHalf(introductionRecipientFingerprintId, introductionRecipientIdentityKey),
+                                    getFingerprintHalf(introduceeFingerprintId, introduceeIdentityKey));
   }
 
   /**
@@ -253,76 +292,198 @@ public class TI_Utils {
     return encodeIdentityKey(getIdentityKey(id));
   }
 
-  @SuppressLint("Range") @WorkerThread
-  public static String buildMessageBody(@NonNull RecipientId introducerRecipientId, @NonNull RecipientId introductionRecipientId, @NonNull Set<RecipientId> introducees) throws JSONException {
-    if(introducees.size() <= 0){
-      throw new AssertionError(TAG + " buildMessageBody called with no Introducees!");
+  /**
+   * Convenience wrapper around writeMessageBody for callers that need the whole body at once.
+   * @return the pretty printed message body.
+   */
+  @WorkerThread
+  public static String buildMessageBody(@NonNull RecipientId introducerRecipientId, @NonNull RecipientId introductionRecipientId, @NonNull Set<RecipientId> introducees) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeMessageBody(introducerRecipientId, introductionRecipientId, introducees, body, true);
+    return body.toString(StandardCharsets.UTF_8.name());
+  }
+
+  /**
+   * Streams the TI message body into out. Every introducee is written as soon as it (and all introducees before it) are computed,
+   * the complete body is never held in memory.
+   * Logs how long starting and computing the entries took, the latter is dominated by the safety numbers that were not cached.
+   * Does not close out.
+   *
+   * @param prettyPrint indents the json for human readableness. Receivers older than 2.1.3 only recognize pretty printed messages.
+   */
+  @WorkerThread
+  public static void writeMessageBody(@NonNull RecipientId introducerRecipientId, @NonNull RecipientId introductionRecipientId, @NonNull Set<RecipientId> introducees, @NonNull OutputStream out, boolean prettyPrint) throws IOException {
+    Stopwatch stopwatch = new Stopwatch("json message body with " + introducees.size() + " introducees");
+    List<Future<MessageEntry>> introduceeEntries = startIntroduceeEntries(introductionRecipientId, introducees);
+    stopwatch.split("start");
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.write(TI_IDENTIFYER + TI_SEPARATOR);
+    JsonWriter json = new JsonWriter(writer);
+    if (prettyPrint) {
+      json.setIndent(String.format("%" + INDENT_SPACES + "s", ""));
+    }
+    json.beginObject();
+    json.name(TI_VERSION_J).value(TI_MESSAGE_VERSION);
+    json.name(INTRODUCER_J);
+    buildIntroducerEntry(introducerRecipientId, introductionRecipientId).writeTo(json);
+
+    // Now do the same for all introducees and wrap them in an array.
+    json.name(INTRODUCEE_DATA_J).beginArray();
+    for (Future<MessageEntry> introduceeEntry : introduceeEntries) {
+      awaitEntry(introduceeEntry).writeTo(json);
+    }
+    json.endArray();
+    json.endObject();
+    json.flush();
+    stopwatch.split("entries");
+    stopwatch.stop(TAG);
+  }
+
+  /**
+   * Same as writeMessageBody, but in the compact binary format of TI_BINARY_MESSAGE_VERSION, @see TI_BinaryMessage.
+   * Does not close out.
+   */
+  @WorkerThread
+  public static void writeBinaryMessageBody(@NonNull RecipientId introducerRecipientId, @NonNull RecipientId introductionRecipientId, @NonNull Set<RecipientId> introducees, @NonNull OutputStream out) throws IOException {
+    Stopwatch stopwatch = new Stopwatch("binary message body with " + introducees.size() + " introducees");
+    List<Future<MessageEntry>> introduceeEntries = startIntroduceeEntries(introductionRecipientId, introducees);
+    stopwatch.split("start");
+
+    TI_BinaryMessage.Writer writer = new TI_BinaryMessage.Writer(out);
+    writer.writeHeader();
+    writer.writeEntry(buildIntroducerEntry(introducerRecipientId, introductionRecipientId));
+    writer.writeCount(introduceeEntries.size());
+    for (Future<MessageEntry> introduceeEntry : introduceeEntries) {
+      writer.writeEntry(awaitEntry(introduceeEntry));
     }
+    writer.flush();
+    stopwatch.split("entries");
+    stopwatch.stop(TAG);
+  }
 
-    JSONObject data = new JSONObject();
+  /**
+   * Kicks off the introducee computations, they are the expensive part of building a message.
+   * The entries are computed in parallel, sorting beforehand keeps their order deterministic.
+   */
+  private static @NonNull List<Future<MessageEntry>> startIntroduceeEntries(@NonNull RecipientId introductionRecipientId, @NonNull Set<RecipientId> introducees){
+    if(introducees.size() <= 0){
+      throw new AssertionError(TAG + " Attempted to build a TI message with no Introducees!");
+    }
 
     Map<RecipientId, RecipientRecord> recipients = RecipientTableGlue.getRecordsForSendingTI(introducees);
 
-    data.put(TI_VERSION_J, TI_MESSAGE_VERSION);
+    List<Map.Entry<RecipientId, RecipientRecord>> entries = new ArrayList<>(recipients.entrySet());
+    entries.sort(Map.Entry.comparingByKey());
+    List<Future<MessageEntry>> introduceeEntries = new ArrayList<>(entries.size());
+    ForkJoinPool pool = getFingerprintPool();
+    for (Map.Entry<RecipientId, RecipientRecord> e : entries) {
+      introduceeEntries.add(pool.submit(() -> buildIntroduceeEntry(introductionRecipientId, e.getKey(), e.getValue())));
+    }
+    return introduceeEntries;
+  }
 
-    // create Introducer entry
-    JSONObject introducer = new JSONObject();
+  private static @NonNull MessageEntry buildIntroducerEntry(@NonNull RecipientId introducerRecipientId, @NonNull RecipientId introductionRecipientId){
     Recipient resolvedIntroducer = Recipient.live(introducerRecipientId).get();
-
-    introducer.put(NAME_J, getSomeNonNullName(introducerRecipientId, SignalDatabase.recipients().getRecord(introducerRecipientId)));
-    introducer.put(NUMBER_J, resolvedIntroducer.getE164().isEmpty() ? UNDISCLOSED : resolvedIntroducer.getE164().get());
-    introducer.put(SERVICE_ID_J, resolvedIntroducer.getServiceId().isEmpty() ? UNDISCLOSED : resolvedIntroducer.getServiceId().get().toString());
+    String predictedFingerprint;
     try{
-      introducer.put(PREDICTED_FINGERPRINT_J, predictFingerprint(introducerRecipientId,
-                                                                 introductionRecipientId,
-                                                                 Recipient.live(introductionRecipientId).get().requireServiceId().toString(),
-                                                                 getIdentityKey(introductionRecipientId)));
+      predictedFingerprint = predictFingerprint(introducerRecipientId,
+                                                introductionRecipientId,
+                                                Recipient.live(introductionRecipientId).get().requireServiceId().toString(),
+                                                getIdentityKey(introductionRecipientId));
     } catch (MissingIdentityException e){
       // should never be the case with the introducer
       throw new AssertionError(TAG + " My own identity key cannot be missing! ");
     }
     try {
-      introducer.put(IDENTITY_J, encodeIdentityKey(getIdentityKey(introducerRecipientId)));
+      return new MessageEntry(getSomeNonNullName(introducerRecipientId, SignalDatabase.recipients().getRecord(introducerRecipientId)),
+                              resolvedIntroducer.getE164().isEmpty() ? UNDISCLOSED : resolvedIntroducer.getE164().get(),
+                              resolvedIntroducer.getServiceId().isEmpty() ? UNDISCLOSED : resolvedIntroducer.getServiceId().get().toString(),
+                              getIdentityKey(introducerRecipientId),
+                              predictedFingerprint);
     } catch (MissingIdentityException e){
       // should never be the case with the introducer
       throw new AssertionError(TAG + " The introducers Identity cannot be missing! " + introducerRecipientId + " cannot be an introducer!");
     }
-    data.put(INTRODUCER_J, introducer);
+  }
 
-    // Now do the same for all introducees and wrap them in an array
-    JSONArray introduceeData = new JSONArray();
-    recipients.forEach((recipientId, recipientRecord) -> {
-      try {
-        JSONObject introducee = new JSONObject();
-        introducee.put(NAME_J, getSomeNonNullName(recipientId, recipientRecord));
-        String introduceeE164 = recipientRecord.getE164() == null ? UNDISCLOSED : recipientRecord.getE164();
-        introducee.put(NUMBER_J, introduceeE164);
-        ServiceId introduceeServiceId =  recipientRecord.getAci();
-        if (introduceeServiceId == null){
-          throw new AssertionError(TAG + "Introducee service ID may not be null.");
-        }
-        introducee.put(SERVICE_ID_J, introduceeServiceId);
-        String formatedSafetyNR;
-        try{
-          IdentityKey introduceeIdentityKey = getIdentityKey(recipientId);
-          introducee.put(IDENTITY_J, encodeIdentityKey(introduceeIdentityKey));
-          formatedSafetyNR = predictFingerprint(introductionRecipientId, recipientId, introduceeServiceId.toString(), introduceeIdentityKey);
-        } catch (MissingIdentityException e){
-          e.printStackTrace();
-          throw new AssertionError(TAG + " Unexpected missing identities when building TI message body!");
-        }
-        introducee.put(PREDICTED_FINGERPRINT_J, formatedSafetyNR);
-        introduceeData.put(introducee);
-        data.put(INTRODUCEE_DATA_J, introduceeData);
-      } catch (JSONException e){
-        e.printStackTrace();
-        throw new AssertionError(TAG + "Json Error occured while building TI_message body.\n");
+  private static @NonNull MessageEntry awaitEntry(@NonNull Future<MessageEntry> entry){
+    try {
+      return entry.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AssertionError(TAG + " Interrupted while building TI_message body.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
       }
-    });
-    return TI_IDENTIFYER + TI_SEPARATOR + data.toString(INDENT_SPACES);
+      throw new AssertionError(TAG + " Error occured while building TI_message body.", e.getCause());
+    }
   }
 
 
+  private static synchronized ForkJoinPool getFingerprintPool(){
+    if (fingerprintPool == null) {
+      // Leave one core to the rest of the app.
+      int parallelism = Math.max(1, Math.min(FINGERPRINT_MAX_PARALLELISM, Runtime.getRuntime().availableProcessors() - 1));
+      fingerprintPool = new ForkJoinPool(parallelism);
+    }
+    return fingerprintPool;
+  }
+
+  /**
+   * Everything the message body contains about a single party (introducer or introducee).
+   */
+  static class MessageEntry {
+    final String      name;
+    final String      number;
+    final String      serviceId;
+    final IdentityKey identityKey;
+    final String      predictedFingerprint;
+
+    MessageEntry(String name, String number, String serviceId, IdentityKey identityKey, String predictedFingerprint){
+      this.name = name;
+      this.number = number;
+      this.serviceId = serviceId;
+      this.identityKey = identityKey;
+      this.predictedFingerprint = predictedFingerprint;
+    }
+
+    void writeTo(JsonWriter json) throws IOException {
+      json.beginObject();
+      json.name(NAME_J).value(name);
+      json.name(NUMBER_J).value(number);
+      json.name(SERVICE_ID_J).value(serviceId);
+      json.name(IDENTITY_J).value(encodeIdentityKey(identityKey));
+      json.name(PREDICTED_FINGERPRINT_J).value(predictedFingerprint);
+      json.endObject();
+    }
+  }
+
+  /**
+   * Computes the entry of a single introducee, including the predicted safety number.
+   * Called concurrently from startIntroduceeEntries.
+   */
+  private static @NonNull MessageEntry buildIntroduceeEntry(@NonNull RecipientId introductionRecipientId, @NonNull RecipientId recipientId, @NonNull RecipientRecord recipientRecord){
+    String introduceeE164 = recipientRecord.getE164() == null ? UNDISCLOSED : recipientRecord.getE164();
+    ServiceId introduceeServiceId =  recipientRecord.getAci();
+    if (introduceeServiceId == null){
+      throw new AssertionError(TAG + "Introducee service ID may not be null.");
+    }
+    try{
+      IdentityKey introduceeIdentityKey = getIdentityKey(recipientId);
+      String formatedSafetyNR = predictFingerprint(introductionRecipientId, recipientId, introduceeServiceId.toString(), introduceeIdentityKey);
+      return new MessageEntry(getSomeNonNullName(recipientId, recipientRecord),
+                              introduceeE164,
+                              introduceeServiceId.toString(),
+                              introduceeIdentityKey,
+                              formatedSafetyNR);
+    } catch (MissingIdentityException e){
+      e.printStackTrace();
+      throw new AssertionError(TAG + " Unexpected missing identities when building TI message body!");
+    }
+  }
+
   private static String getSomeNonNullName(RecipientId id, RecipientRecord record){
     String name;
     name = record.getSystemDisplayName();
@@ -349,10 +510,42 @@ public class TI_Utils {
     return "¯\\_(ツ)_/¯";
   }
 
-  // This structure allows for a oneliner in the processing logic to minimize additional code needed in there.
-  public static void handleTIMessage(String message, long timestamp){
+  /**
+   * Parses an incoming .trustedIntroduction file as it is read and schedules the reception job with the resulting introductions.
+   * Both the json (TI_MESSAGE_VERSION) and the binary (TI_BINARY_MESSAGE_VERSION) format are accepted, told apart by their first bytes.
+   * @param message content of the file, not closed.
+   * @param timestamp when message was received
+   */
+  @WorkerThread
+  public static void handleTIMessage(@NonNull InputStream message, long timestamp){
+    TI_MessageParser.Collector parsed = new TI_MessageParser.Collector();
+    try {
+      BufferedInputStream in = new BufferedInputStream(message);
+      in.mark(TI_BinaryMessage.MAGIC.length);
+      byte[] header = new byte[TI_BinaryMessage.MAGIC.length];
+      int    read   = 0;
+      int    n      = 0;
+      while (read < header.length && (n = in.read(header, read, header.length - read)) >= 0) {
+        read += n;
+      }
+      boolean accepted;
+      if (read == header.length && TI_BinaryMessage.isBinaryMessage(header)) {
+        accepted = TI_BinaryMessage.parse(in, timestamp, parsed);
+      } else {
+        in.reset();
+        accepted = TI_MessageParser.parse(new InputStreamReader(in, StandardCharsets.UTF_8), timestamp, parsed);
+      }
+      if (!accepted){
+        // For now we just ignore introductions with mismatched versions or invalid bodies
+        return;
+      }
+    } catch (IOException e){
+      Log.e(TAG, "An exception occured while trying to parse an incoming TI message.", e);
+      return;
+    }
+    RecipientId introducerId = RecipientId.from(ServiceId.parseOrThrow(parsed.introducerServiceId));
     // Schedule Reception Job
-    AppDependencies.getJobManager().add(new TrustedIntroductionsReceiveJob(message, timestamp));
+    AppDependencies.getJobManager().add(new TrustedIntroductionsReceiveJob(introducerId, resolveKnownIntroducees(parsed.introductions), timestamp));
   }
 
 
@@ -368,44 +561,19 @@ public class TI_Utils {
     }
   }
 
-  /**
-   * PRE: message is a valid TI message (contains identifyer)
-   * @param message the body of the .trustedintro attachment
-   * @return a parsed JSONObject or null if there was a version missmatch
-   */
-  private static @Nullable JSONObject getPureJson(String message) throws JSONException{
-    Preconditions.checkArgument(message.contains(TI_IDENTIFYER));
-    if (isCorrectTImessageVersion(message)){
-      return new JSONObject(message.replace(TI_IDENTIFYER, ""));
-    } else {
-     Log.e(TAG, "Invalid TI_message for the following body:\n" + message +  "\n\n--> The current version should be: " + TI_MESSAGE_VERSION + "\n");
-     return null;
-    }
-  }
-
-  /**
-   * @param message the TI message (content of .trustedintro file)
-   * @return True if the current TI_version is present in the message, false otherwise
-   */
-  private static boolean isCorrectTImessageVersion(String message){
-    return message.contains(String.format(Locale.getDefault(), "\"ti_version\": \"%s\"", TI_MESSAGE_VERSION)) && message.contains(TI_IDENTIFYER);
-  }
-
   /**
    * Parses the introducer recipient ID from the raw TI_message if possible, else null
    * @param message the TI message (content of .trustedintro file)
    * @return the RecipientId of the introducer or null if there was a version mismatch
    */
   public static @javax.annotation.Nullable RecipientId getIntroducerFromRawMessage(String message){
+    TI_MessageParser.Collector parsed = new TI_MessageParser.Collector();
     try{
-      JSONObject jsonData = getPureJson(message);
-      if (jsonData != null){
-        JSONObject introducer = new JSONObject(jsonData.getString(INTRODUCER_J));
-        return RecipientId.from(ServiceId.parseOrThrow(introducer.getString(SERVICE_ID_J)));
+      if (TI_MessageParser.parse(new StringReader(message), 0, parsed)){
+        return RecipientId.from(ServiceId.parseOrThrow(parsed.introducerServiceId));
       }
-    } catch (JSONException e){
-      Log.e(TAG, "A JsonException occured for the following TI message body: \n" + message);
-      e.printStackTrace();
+    } catch (IOException e){
+      Log.e(TAG, "An exception occured for the following TI message body: \n" + message, e);
     }
     return null;
   }
@@ -413,87 +581,82 @@ public class TI_Utils {
 
   /**
    * Parses an incoming TI message to create introduction data
-   * PRE: body is a valid TI message with the correct version.
    * @param body of the incoming message
    * @param timestamp when message was received
-   * @param introducerId whom the message came from
    * @return populated List<TI_Data> if successfull, null otherwise
    */
   @WorkerThread
-  @SuppressLint("Range") // keywords exists
-  public static @Nullable List<TI_Data> constructIntroduceesFromTrustedIntrosString(String body, long timestamp, RecipientId introducerId){
-    if (!body.contains(TI_IDENTIFYER) || !isCorrectTImessageVersion(body)){
-      throw new AssertionError("Non TI message passed into constructIntroducees!");
-    }
-    String introducerServiceId = getServiceIdFromRecipientId(introducerId);
-    ArrayList<TI_Data> result = new ArrayList<>();
+  public static @Nullable List<TI_Data> constructIntroduceesFromTrustedIntrosString(String body, long timestamp){
+    TI_MessageParser.Collector parsed = new TI_MessageParser.Collector();
     try {
-      JSONObject data = getPureJson(body);
-      if (data == null){
+      if (!TI_MessageParser.parse(new StringReader(body), timestamp, parsed)){
         // For now we just ignore introductions with mismatched versions or invalid bodies
         return null;
       }
-      JSONArray introducees = data.getJSONArray(INTRODUCEE_DATA_J);
-      ArrayList<IdKeyPair> idKeyPairs = new ArrayList<>();
-      List<String> recipientServiceIds = new ArrayList<>();
-      // Get all SerciveIds of introducees first to minimize database Queries
-      for (int i = 0; i < introducees.length(); i++){
-        JSONObject o = introducees.getJSONObject(i);
-        String introduceeServiceId = o.getString(SERVICE_ID_J);
-        idKeyPairs.add(new IdKeyPair(introduceeServiceId, o.getString(IDENTITY_J)));
-        recipientServiceIds.add(introduceeServiceId);
-      }
-      // Get any known recipients & add to result
-      Map<RecipientId, RecipientRecord> records   = RecipientTableGlue.getRecordsForReceivingTI(recipientServiceIds);
-      ArrayList<String>                 knownIds = new ArrayList<>();
-      if (!records.isEmpty()){
-        records.forEach((recipientID, recipientRecord) -> {
-          String introduceeServiceId = recipientRecord.getAci().toString();
-          knownIds.add(introduceeServiceId);
-          String name = getSomeNonNullName(recipientID, recipientRecord);
-          String phone = recipientRecord.getE164() == UNDISCLOSED ? null : recipientRecord.getE164();
-          String identityKey = IdKeyPair.findCorrespondingKeyInList(introduceeServiceId, idKeyPairs);
-          TI_Data d = new TI_Data(null, TI_Database.State.PENDING, introducerServiceId, introduceeServiceId, name, phone, identityKey, null, timestamp);
-          result.add(d);
-        });
-      }
-      // Iterate through JSONData again, create the introductions for the still unknown recipients & set the predictedSecurityNumbers for all
-      for(int i = 0; i < introducees.length(); i++){
-        JSONObject o = introducees.getJSONObject(i);
-        // If data was fetched from local database, simply add the Security number information
-        String introduceeServiceId = o.getString(SERVICE_ID_J);
-        if (knownIds.contains(introduceeServiceId)){
-          int j = 0;
-          while(!result.get(j).getIntroduceeServiceId().equals(introduceeServiceId)) j++;
-          if (j >= result.size()){
-            throw new AssertionError("Known Id not found in the original JSON Data");
-          }
-          result.get(j).setPredictedSecurityNumber(o.getString(PREDICTED_FINGERPRINT_J));
-        } else {
-          TI_Data d = new TI_Data(null, TI_Database.State.PENDING, introducerServiceId, o.getString(SERVICE_ID_J), o.getString(NAME_J), o.getString(NUMBER_J), o.getString(IDENTITY_J), o.getString(PREDICTED_FINGERPRINT_J), timestamp);
-          result.add(d);
-        }
-      }
-    } catch(JSONException e){
-      Log.e(TAG, String.format("A JSON exception occured while trying to parse the TI message: %s", body));
+    } catch(IOException e){
+      Log.e(TAG, String.format("An exception occured while trying to parse the TI message: %s", body));
       return null; // unsuccessful parse
     }
-    return result;
+    return resolveKnownIntroducees(parsed.introductions);
   }
 
-  private static String getPhone(JSONArray introducees, String introuceeServiceId){
-    try {
-      for (int i = 0; i < introducees.length(); i++) {
-        JSONObject o = introducees.getJSONObject(i);
-        if (o.getString(SERVICE_ID_J).equals(introuceeServiceId)){
-          return o.getString(NUMBER_J);
-        }
+  /**
+   * Replaces the name and number the introducer disclosed with our own for introducees we already know.
+   * Linear in the number of introductions, everything is looked up by service id. The time of each step is logged together with the
+   * number of introductions, such that large introductions can be checked for linear behaviour in the logs.
+   * @param introductions as parsed from the message
+   * @return introductions of known recipients first, followed by the unknown ones.
+   */
+  @WorkerThread
+  private static @NonNull List<TI_Data> resolveKnownIntroducees(@NonNull List<TI_Data> introductions){
+    if (introductions.isEmpty()){
+      return introductions;
+    }
+    // All introductions of one message share introducer and timestamp
+    String introducerServiceId = introductions.get(0).getIntroducerServiceId();
+    long timestamp = introductions.get(0).getTimestamp();
+    Stopwatch stopwatch = new Stopwatch("resolve " + introductions.size() + " introducees");
+    // Index by normalized service id, if an introducee is listed more than once the first entry wins.
+    // The recipient table hands back normalized ids, the introducer may have sent them in any form ServiceId accepts.
+    Map<String, TI_Data> parsedByServiceId = new LinkedHashMap<>();
+    List<TI_Data> valid = new ArrayList<>(introductions.size());
+    for (TI_Data d : introductions){
+      ServiceId serviceId = ServiceId.parseOrNull(d.getIntroduceeServiceId());
+      if (serviceId == null){
+        Log.w(TAG, "Dropping introduction with invalid introducee service ID: " + d.getIntroduceeServiceId());
+        continue;
+      }
+      String normalized = serviceId.toString();
+      TI_Data n = normalized.equals(d.getIntroduceeServiceId()) ? d : d.copy(d.getId(), d.getState(), d.getIntroducerServiceId(), normalized, d.getIntroduceeName(), d.getIntroduceeNumber(), d.getIntroduceeIdentityKey(), d.getPredictedSecurityNumber(), d.getTimestamp());
+      valid.add(n);
+      parsedByServiceId.putIfAbsent(normalized, n);
+    }
+    stopwatch.split("index");
+    // Get any known recipients in one query & add to result
+    Map<RecipientId, RecipientRecord> records = RecipientTableGlue.getRecordsForReceivingTI(new ArrayList<>(parsedByServiceId.keySet()));
+    stopwatch.split("query");
+    Map<String, TI_Data> known = new LinkedHashMap<>();
+    records.forEach((recipientID, recipientRecord) -> {
+      String introduceeServiceId = recipientRecord.getAci().toString();
+      TI_Data parsed = parsedByServiceId.get(introduceeServiceId);
+      if (parsed == null){
+        Log.w(TAG, "Known recipient " + recipientID + " not found in the introductions, skipping.");
+        return;
+      }
+      String name = getSomeNonNullName(recipientID, recipientRecord);
+      String phone = recipientRecord.getE164() == UNDISCLOSED ? null : recipientRecord.getE164();
+      known.put(introduceeServiceId, new TI_Data(null, TI_Database.State.PENDING, introducerServiceId, introduceeServiceId, name, phone, parsed.getIntroduceeIdentityKey(), parsed.getPredictedSecurityNumber(), timestamp));
+    });
+    ArrayList<TI_Data> result = new ArrayList<>(valid.size());
+    result.addAll(known.values());
+    for (TI_Data d : valid){
+      if (!known.containsKey(d.getIntroduceeServiceId())){
+        result.add(d);
       }
-    } catch (JSONException e){
-      e.printStackTrace();
-      Log.i(TAG, "Error while extracting phone nr. from introduction. Using placeholder.");
     }
-    return "missing";
+    stopwatch.split("merge");
+    stopwatch.stop(TAG);
+    return result;
   }
 
   /**
@@ -527,63 +690,28 @@ public class TI_Utils {
     return hashtext;
   }
 
-  private static class IdKeyPair{
-    public String id;
-    public String key;
-
-    public IdKeyPair(String id, String key){
-      this.id = id;
-      this.key = key;
-    }
-
-    public static String findCorrespondingKeyInList(String id, ArrayList<IdKeyPair> list){
-      for (IdKeyPair p: list) {
-        if(id.equals(p.id)){
-          return p.key;
-        }
-      }
-      throw new AssertionError(TAG + " The Id you were searching for was not found in the list!");
-    }
-  }
-
   /**
-   * Spawns it's own thread.
-   * Used both by verifyDisplayFragment and Introduction database.
-   * TODO: Should this be a job for persistence?
+   * Does not block. The TI status is written in the background, the vanilla identity store, other devices and storage service follow in a job,
+   * @see TrustedIntroductionVerifiedStatusJob
+   * Used by the verify screen, the introduction FSM writes the TI status inside its transitions, @see TI_IdentityTable.modifyIntroduceeVerification
    *
+   * @param remoteIdentity the identity the user (un)verified, nothing is saved if it changed in the meantime.
    * @param status The new verification status
    */
   public static void updateContactsVerifiedStatus(RecipientId recipientId, IdentityKey remoteIdentity, TI_IdentityTable.VerifiedStatus status) {
     Log.i(TAG, "Saving identity: " + recipientId);
     SignalExecutors.BOUNDED.execute(() -> {
-      // Fetch remote identity
-      Recipient recipient = Recipient.live(recipientId).resolve();
-      try (SignalSessionLock.Lock unused = ReentrantSessionLock.INSTANCE.acquire()) {
-        // TI
-        SignalDatabase.tiIdentityDatabase().setVerifiedStatus(recipientId, status);
-        // Vanilla
-        final boolean verified = TI_IdentityTable.VerifiedStatus.isVerified(status);
-        if (verified) {
-          AppDependencies.getProtocolStore().aci().identities()
-                                 .saveIdentityWithoutSideEffects(recipientId,
-                                                                 recipient.requireServiceId(),
-                                                                 remoteIdentity,
-                                                                 TI_IdentityTable.VerifiedStatus.toVanilla(status),
-                                                                 false,
-                                                                 System.currentTimeMillis(),
-                                                                 true);
-        } else {
-          AppDependencies.getProtocolStore().aci().identities().setVerified(recipientId, remoteIdentity, IdentityTable.VerifiedStatus.forState(TI_IdentityTable.VerifiedStatus.toVanilla(status.toInt())));
+      try {
+        if (!remoteIdentity.equals(getIdentityKey(recipientId))) {
+          Log.w(TAG, "Identity of " + recipientId + " changed, not saving the verification status of the previous one.");
+          return;
         }
-        // For other devices but the Android phone, we map the finer statusses to verified or unverified.
-        // TODO: Change once we add new devices for TI
-        AppDependencies.getJobManager()
-                               .add(new MultiDeviceVerifiedUpdateJob(recipientId,
-                                                                     remoteIdentity,
-                                                                     IdentityTable.VerifiedStatus.forState(IdentityTableGlue.VerifiedStatus.toVanilla(status.toInt()))));
-        StorageSyncHelper.scheduleSyncForDataChange();
-        IdentityUtil.markIdentityVerified(getApplicationContext(), recipient, verified, false);
+      } catch (MissingIdentityException e) {
+        Log.w(TAG, "No identity for " + recipientId + ", not saving the verification status.", e);
+        return;
       }
+      SignalDatabase.tiIdentityDatabase().setVerifiedStatus(recipientId, status);
+      AppDependencies.getJobManager().add(new TrustedIntroductionVerifiedStatusJob(recipientId));
     });
   }
 
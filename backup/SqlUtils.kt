@@ -6,6 +6,7 @@
 package org.thoughtcrime.securesms.trustedIntroductions.backup
 
 import androidx.sqlite.db.SupportSQLiteDatabase
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database
 import java.util.LinkedList
 
 class SqlUtils {
@@ -14,7 +15,9 @@ class SqlUtils {
     @JvmStatic
     fun getAllTablesTI(db: SupportSQLiteDatabase): List<String> {
       val tables: MutableList<String> = LinkedList()
-      db.query("SELECT name FROM sqlite_master WHERE type=? and (name LIKE 'TI_%' or name LIKE 'trusted_%')", arrayOf("table")).use { cursor ->
+      // The full text index with its shadow tables and the introducee summary are derived from the introductions and rebuilt on restore,
+      // @see TI_DatabaseGlue.onBackupRestored. Restoring the summary would count the restored introductions twice.
+      db.query("SELECT name FROM sqlite_master WHERE type=? and (name LIKE 'TI_%' or name LIKE 'trusted_%') and name NOT LIKE ? and name != ?", arrayOf("table", TI_Database.SEARCH_TABLE_NAME + "%", TI_Database.SUMMARY_TABLE_NAME)).use { cursor ->
         while (cursor.moveToNext()) {
           tables.add(cursor.getString(0))
         }
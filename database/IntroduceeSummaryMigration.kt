@@ -0,0 +1,19 @@
+package org.thoughtcrime.securesms.trustedIntroductions.database
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue
+
+object IntroduceeSummaryMigration {
+  // Idempotent, also meant to be run after restoring a backup: the summary is always recomputed from the introductions.
+  fun migrate(context: Application, db: SQLiteDatabase) {
+    db.beginTransaction()
+    try {
+      TI_DatabaseGlue.executeCreateSummary(db)
+      TI_DatabaseGlue.executeRebuildSummary(db)
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+  }
+}
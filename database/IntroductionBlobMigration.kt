@@ -0,0 +1,84 @@
+package org.thoughtcrime.securesms.trustedIntroductions.database
+
+import android.app.Application
+import android.content.ContentValues
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.signal.core.util.Base64
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.trustedIntroductions.TI_BinaryMessage
+import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database.TABLE_NAME
+import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue
+import java.io.IOException
+
+object IntroductionBlobMigration {
+  private val TAG = String.format(TI_Utils.TI_LOG_TAG, Log.tag(IntroductionBlobMigration::class.java))
+
+  private const val NEW_TABLE_NAME = "${TABLE_NAME}_blob"
+  private const val ID = "_id"
+  private const val INTRODUCEE_IDENTITY_KEY = "introducee_identity_key"
+  private const val PREDICTED_FINGERPRINT = "predicted_fingerprint"
+
+  // Idempotent. Identity keys used to be stored Base64 encoded and safety numbers formatted, both as TEXT.
+  // SQLite cannot change column types in place: the introductions are copied (keeping their ids) into a table of the new schema which then replaces the old one.
+  // Rows that cannot be converted are dropped. Keys that only differed in their Base64 padding become equal, duplicates are merged by IntroductionIndexMigration.
+  fun migrate(context: Application, db: SQLiteDatabase) {
+    db.beginTransaction()
+    try {
+      if (isMigrated(db)) {
+        db.setTransactionSuccessful()
+        return
+      }
+      db.execSQL("DROP TABLE IF EXISTS $NEW_TABLE_NAME")
+      db.execSQL(TI_Database.buildCreateTable(NEW_TABLE_NAME))
+      var dropped = 0
+      db.rawQuery("SELECT * FROM $TABLE_NAME", null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val values = ContentValues(cursor.columnCount)
+          for (i in 0 until cursor.columnCount) {
+            when (val column = cursor.getColumnName(i)) {
+              INTRODUCEE_IDENTITY_KEY, PREDICTED_FINGERPRINT -> Unit
+              else -> if (cursor.isNull(i)) values.putNull(column) else values.put(column, cursor.getString(i))
+            }
+          }
+          val identityKey = try {
+            Base64.decode(cursor.getString(cursor.getColumnIndexOrThrow(INTRODUCEE_IDENTITY_KEY)))
+          } catch (e: IOException) {
+            null
+          }
+          val fingerprint = TI_BinaryMessage.packFingerprintOrNull(cursor.getString(cursor.getColumnIndexOrThrow(PREDICTED_FINGERPRINT)))
+          if (identityKey == null || fingerprint == null) {
+            dropped++
+            continue
+          }
+          values.put(INTRODUCEE_IDENTITY_KEY, identityKey)
+          values.put(PREDICTED_FINGERPRINT, fingerprint)
+          db.insertOrThrow(NEW_TABLE_NAME, null, values)
+        }
+      }
+      if (dropped > 0) {
+        Log.w(TAG, "Dropped $dropped malformed introduction(s).")
+      }
+      // Deleted introductions must not have their ids reused.
+      val sequence = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = ?", arrayOf(TABLE_NAME)).use { if (it.moveToFirst()) it.getLong(0) else 0L }
+      db.execSQL("DROP TABLE $TABLE_NAME")
+      db.execSQL("ALTER TABLE $NEW_TABLE_NAME RENAME TO $TABLE_NAME")
+      db.execSQL("UPDATE sqlite_sequence SET seq = MAX(seq, ?) WHERE name = ?", arrayOf<Any>(sequence, TABLE_NAME))
+      // Indexes and triggers went with the old table.
+      IntroductionIndexMigration.migrate(context, db)
+      TI_DatabaseGlue.executeCreateSummary(db)
+      TI_DatabaseGlue.executeRebuildSummary(db)
+      TI_DatabaseGlue.executeCreateSearch(db)
+      TI_DatabaseGlue.executeRebuildSearch(db)
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+  }
+
+  private fun isMigrated(db: SQLiteDatabase): Boolean {
+    return db.rawQuery("SELECT type FROM pragma_table_info('$TABLE_NAME') WHERE name = ?", arrayOf(INTRODUCEE_IDENTITY_KEY)).use {
+      it.moveToFirst() && it.getString(0).equals("BLOB", ignoreCase = true)
+    }
+  }
+}
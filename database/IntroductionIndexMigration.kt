@@ -0,0 +1,55 @@
+package org.thoughtcrime.securesms.trustedIntroductions.database
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database.INTRODUCER_SERVICE_ID
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database.TABLE_NAME
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID
+import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue
+
+object IntroductionIndexMigration {
+  private const val INTRODUCEE_SERVICE_ID = "introducee_service_id"
+  private const val INTRODUCEE_IDENTITY_KEY = "introducee_identity_key"
+  private const val TIMESTAMP = "timestamp"
+
+  private const val DEDUPLICATION_TABLE = "ti_introduction_dedup"
+
+  // Idempotent. Older databases may hold duplicates of the same introduction which would violate the unique index:
+  // keep the oldest row (the one the user may already have interacted with) with the newest timestamp and drop the rest.
+  // The duplicates are found with a single GROUP BY into a temporary table keyed by the kept id, no statement correlates over the unindexed table.
+  fun migrate(context: Application, db: SQLiteDatabase) {
+    val deduplicated = "$INTRODUCER_SERVICE_ID IS NOT NULL AND $INTRODUCER_SERVICE_ID != '$UNKNOWN_INTRODUCER_SERVICE_ID'"
+    db.beginTransaction()
+    try {
+      db.execSQL("DROP TABLE IF EXISTS temp.$DEDUPLICATION_TABLE")
+      db.execSQL("CREATE TEMP TABLE $DEDUPLICATION_TABLE (keep_id INTEGER PRIMARY KEY, max_timestamp INTEGER NOT NULL, duplicates INTEGER NOT NULL)")
+      db.execSQL(
+        """
+        INSERT INTO temp.$DEDUPLICATION_TABLE 
+        SELECT MIN(_id), MAX($TIMESTAMP), COUNT(*) FROM $TABLE_NAME 
+        WHERE $deduplicated 
+        GROUP BY $INTRODUCER_SERVICE_ID, $INTRODUCEE_SERVICE_ID, $INTRODUCEE_IDENTITY_KEY
+        """
+      )
+      db.execSQL(
+        """
+        UPDATE $TABLE_NAME 
+        SET $TIMESTAMP = (SELECT max_timestamp FROM temp.$DEDUPLICATION_TABLE WHERE keep_id = $TABLE_NAME._id) 
+        WHERE _id IN (SELECT keep_id FROM temp.$DEDUPLICATION_TABLE WHERE duplicates > 1)
+        """
+      )
+      db.execSQL(
+        """
+        DELETE FROM $TABLE_NAME 
+        WHERE $deduplicated 
+        AND _id NOT IN (SELECT keep_id FROM temp.$DEDUPLICATION_TABLE)
+        """
+      )
+      db.execSQL("DROP TABLE temp.$DEDUPLICATION_TABLE")
+      TI_DatabaseGlue.executeCreateIndexes(db)
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+  }
+}
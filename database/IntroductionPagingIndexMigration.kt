@@ -0,0 +1,12 @@
+package org.thoughtcrime.securesms.trustedIntroductions.database
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue
+
+object IntroductionPagingIndexMigration {
+  // Idempotent, only adds the (timestamp, _id) index the manage screen pages on. The other indexes already exist at this point.
+  fun migrate(context: Application, db: SQLiteDatabase) {
+    TI_DatabaseGlue.executeCreateIndexes(db)
+  }
+}
@@ -0,0 +1,22 @@
+package org.thoughtcrime.securesms.trustedIntroductions.database
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database.TABLE_NAME
+import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue
+
+object IntroductionSearchMigration {
+  // Idempotent, also meant to be run after restoring a backup: the search index is always recomputed from the introductions.
+  fun migrate(context: Application, db: SQLiteDatabase) {
+    db.beginTransaction()
+    try {
+      // Replaced by a trigger that no longer re-indexes timestamp refreshes.
+      db.execSQL("DROP TRIGGER IF EXISTS ${TABLE_NAME}_search_update")
+      TI_DatabaseGlue.executeCreateSearch(db)
+      TI_DatabaseGlue.executeRebuildSearch(db)
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+  }
+}
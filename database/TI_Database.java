@@ -4,15 +4,20 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
+import org.signal.core.util.Base64;
 import org.signal.core.util.SqlUtil;
+import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.DatabaseTable;
+import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.RecipientRecord;
@@ -22,6 +27,7 @@ import org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue;
 import org.thoughtcrime.securesms.trustedIntroductions.glue.RecipientTableGlue;
 import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue;
 import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.trustedIntroductions.TI_BinaryMessage;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Data;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils;
 import org.whispersystems.signalservice.api.push.ServiceId;
@@ -30,10 +36,21 @@ import org.whispersystems.signalservice.api.util.Preconditions;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  *
@@ -82,16 +99,178 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
   public static final String PREVIOUS_PARTIAL_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                                                      INTRODUCER_SERVICE_ID;
 
-  public static final String CREATE_TABLE =
-      "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-      INTRODUCER_SERVICE_ID + " TEXT, " +
+  public static final String CREATE_TABLE = buildCreateTable(TABLE_NAME);
+
+  /**
+   * Identity keys are stored serialized (@see IdentityKey.serialize), safety numbers packed (@see TI_BinaryMessage.packFingerprint).
+   * TI_Data carries them Base64 encoded and formatted respectively, they are converted when reading and writing.
+   * @param tableName allows IntroductionBlobMigration to build the table next to the previous one.
+   */
+  static String buildCreateTable(String tableName){
+    return "CREATE TABLE " + tableName + " (" + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+           INTRODUCER_SERVICE_ID + " TEXT, " +
+           INTRODUCEE_SERVICE_ID + " TEXT NOT NULL, " +
+           INTRODUCEE_PUBLIC_IDENTITY_KEY + " BLOB NOT NULL, " +
+           INTRODUCEE_NAME + " TEXT NOT NULL, " +
+           INTRODUCEE_NUMBER + " TEXT, " +
+           PREDICTED_FINGERPRINT + " BLOB NOT NULL, " +
+           TIMESTAMP + " INTEGER NOT NULL, " +
+           STATE + " INTEGER NOT NULL);";
+  }
+
+  // Deduplication key of an introduction. Forgotten introducers all share UNKNOWN_INTRODUCER_SERVICE_ID and are therefore excluded.
+  private static final String UNIQUE_INTRODUCTION_INDEX = "trusted_introductions_unique_introduction_index";
+  // Serves every per introducee lookup, the verification FSM in particular.
+  private static final String INTRODUCEE_STATE_INDEX    = "trusted_introductions_introducee_state_index";
+  // Keyset of the displayed introductions, @see getDisplayableIntroductionsPage
+  private static final String TIMESTAMP_INDEX           = "trusted_introductions_timestamp_index";
+  private static final String UNIQUE_INTRODUCTION_WHERE = INTRODUCER_SERVICE_ID + " != '" + UNKNOWN_INTRODUCER_SERVICE_ID + "'";
+
+  public static final String[] CREATE_INDEXES = {
+      "CREATE UNIQUE INDEX IF NOT EXISTS " + UNIQUE_INTRODUCTION_INDEX + " ON " + TABLE_NAME + " (" +
+      INTRODUCER_SERVICE_ID + ", " + INTRODUCEE_SERVICE_ID + ", " + INTRODUCEE_PUBLIC_IDENTITY_KEY + ") WHERE " + UNIQUE_INTRODUCTION_WHERE + ";",
+      "CREATE INDEX IF NOT EXISTS " + INTRODUCEE_STATE_INDEX + " ON " + TABLE_NAME + " (" + INTRODUCEE_SERVICE_ID + ", " + STATE + ");",
+      "CREATE INDEX IF NOT EXISTS " + TIMESTAMP_INDEX + " ON " + TABLE_NAME + " (" + TIMESTAMP + ", " + ID + ");"
+  };
+
+  /**
+   * Number of introductions per introducee and state, kept current by triggers on TABLE_NAME.
+   * Lets the verification FSM ask about the other introductions of an introducee without touching TABLE_NAME.
+   */
+  public static final String SUMMARY_TABLE_NAME = "TI_introducee_summary";
+  private static final String INTRODUCTION_COUNT = "introduction_count";
+
+  public static final String CREATE_SUMMARY_TABLE =
+      "CREATE TABLE IF NOT EXISTS " + SUMMARY_TABLE_NAME + " (" +
       INTRODUCEE_SERVICE_ID + " TEXT NOT NULL, " +
-      INTRODUCEE_PUBLIC_IDENTITY_KEY + " TEXT NOT NULL, " +
-      INTRODUCEE_NAME + " TEXT NOT NULL, " +
-      INTRODUCEE_NUMBER + " TEXT, " +
-      PREDICTED_FINGERPRINT + " TEXT NOT NULL, " +
-      TIMESTAMP + " INTEGER NOT NULL, " +
-      STATE + " INTEGER NOT NULL);";
+      STATE + " INTEGER NOT NULL, " +
+      INTRODUCTION_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+      "PRIMARY KEY (" + INTRODUCEE_SERVICE_ID + ", " + STATE + ")) WITHOUT ROWID;";
+
+  public static final String[] CREATE_SUMMARY_TRIGGERS = {
+      "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_summary_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+      incrementSummary("new") +
+      " END;",
+      "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_summary_update AFTER UPDATE OF " + STATE + ", " + INTRODUCEE_SERVICE_ID + " ON " + TABLE_NAME +
+      " WHEN old." + STATE + " != new." + STATE + " OR old." + INTRODUCEE_SERVICE_ID + " != new." + INTRODUCEE_SERVICE_ID + " BEGIN " +
+      decrementSummary("old") +
+      incrementSummary("new") +
+      " END;",
+      "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_summary_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+      decrementSummary("old") +
+      " END;"
+  };
+
+  // Recomputes the summary from scratch, for databases that hold introductions written before the triggers existed.
+  public static final String[] REBUILD_SUMMARY = {
+      "DELETE FROM " + SUMMARY_TABLE_NAME + ";",
+      "INSERT INTO " + SUMMARY_TABLE_NAME + " (" + INTRODUCEE_SERVICE_ID + ", " + STATE + ", " + INTRODUCTION_COUNT + ") " +
+      "SELECT " + INTRODUCEE_SERVICE_ID + ", " + STATE + ", COUNT(*) FROM " + TABLE_NAME + " GROUP BY " + INTRODUCEE_SERVICE_ID + ", " + STATE + ";"
+  };
+
+  private static String incrementSummary(String row){
+    return "INSERT INTO " + SUMMARY_TABLE_NAME + " (" + INTRODUCEE_SERVICE_ID + ", " + STATE + ", " + INTRODUCTION_COUNT + ") " +
+           "VALUES (" + row + "." + INTRODUCEE_SERVICE_ID + ", " + row + "." + STATE + ", 1) " +
+           "ON CONFLICT (" + INTRODUCEE_SERVICE_ID + ", " + STATE + ") DO UPDATE SET " + INTRODUCTION_COUNT + " = " + INTRODUCTION_COUNT + " + 1;";
+  }
+
+  private static String decrementSummary(String row){
+    String matchesRow = " WHERE " + INTRODUCEE_SERVICE_ID + " = " + row + "." + INTRODUCEE_SERVICE_ID + " AND " + STATE + " = " + row + "." + STATE;
+    return "UPDATE " + SUMMARY_TABLE_NAME + " SET " + INTRODUCTION_COUNT + " = " + INTRODUCTION_COUNT + " - 1" + matchesRow + "; " +
+           "DELETE FROM " + SUMMARY_TABLE_NAME + matchesRow + " AND " + INTRODUCTION_COUNT + " <= 0;";
+  }
+
+  /**
+   * Full text index over everything the manage screen can be searched by, rowid == introduction id. Kept current by triggers on TABLE_NAME.
+   * The introducer is resolved from the recipient table when the introduction is written, renamed introducers are picked up by REFRESH_SEARCH_INTRODUCERS.
+   * The date is the one the introduction was first received with, timestamp refreshes of a duplicate do not re-index the row.
+   */
+  public static final String SEARCH_TABLE_NAME = TABLE_NAME + "_fts";
+  private static final String INTRODUCER_NAME   = "introducer_name";
+  private static final String INTRODUCER_NUMBER = "introducer_number";
+  private static final String DATE              = "date";
+  // @see RecipientTable, not exposed there
+  private static final String RECIPIENT_PROFILE_JOINED_NAME = "profile_joined_name";
+
+  public static final String CREATE_SEARCH_TABLE =
+      "CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME + " USING fts5(" +
+      INTRODUCEE_NAME + ", " + INTRODUCEE_NUMBER + ", " + INTRODUCER_NAME + ", " + INTRODUCER_NUMBER + ", " + DATE + ", " +
+      "tokenize = 'unicode61 remove_diacritics 2');";
+
+  public static final String[] CREATE_SEARCH_TRIGGERS = {
+      "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_search_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+      insertSearchRow("new") +
+      " END;",
+      "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_search_update AFTER UPDATE OF " +
+      INTRODUCEE_NAME + ", " + INTRODUCEE_NUMBER + ", " + INTRODUCER_SERVICE_ID + " ON " + TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + SEARCH_TABLE_NAME + " WHERE rowid = old." + ID + "; " +
+      insertSearchRow("new") +
+      " END;",
+      "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_search_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + SEARCH_TABLE_NAME + " WHERE rowid = old." + ID + ";" +
+      " END;"
+  };
+
+  public static final String[] REBUILD_SEARCH = {
+      "DELETE FROM " + SEARCH_TABLE_NAME + ";",
+      "INSERT INTO " + SEARCH_TABLE_NAME + " (rowid, " + INTRODUCEE_NAME + ", " + INTRODUCEE_NUMBER + ", " + INTRODUCER_NAME + ", " + INTRODUCER_NUMBER + ", " + DATE + ") " +
+      "SELECT " + searchColumns(TABLE_NAME) + " FROM " + TABLE_NAME + ";"
+  };
+
+  /**
+   * Re-resolves the introducers of the rows whose indexed introducer name or number no longer matches the recipient table.
+   */
+  private static final String REFRESH_SEARCH_INTRODUCERS =
+      "UPDATE " + SEARCH_TABLE_NAME + " SET " +
+      INTRODUCER_NAME + " = (SELECT " + introducerName("t") + " FROM " + TABLE_NAME + " t WHERE t." + ID + " = " + SEARCH_TABLE_NAME + ".rowid), " +
+      INTRODUCER_NUMBER + " = (SELECT " + introducerNumber("t") + " FROM " + TABLE_NAME + " t WHERE t." + ID + " = " + SEARCH_TABLE_NAME + ".rowid) " +
+      "WHERE rowid IN (SELECT t." + ID + " FROM " + TABLE_NAME + " t JOIN " + SEARCH_TABLE_NAME + " s ON s.rowid = t." + ID + " " +
+      "WHERE s." + INTRODUCER_NAME + " IS NOT " + introducerName("t") + " OR s." + INTRODUCER_NUMBER + " IS NOT " + introducerNumber("t") + ");";
+
+  private static String insertSearchRow(String row){
+    return "INSERT INTO " + SEARCH_TABLE_NAME + " (rowid, " + INTRODUCEE_NAME + ", " + INTRODUCEE_NUMBER + ", " + INTRODUCER_NAME + ", " + INTRODUCER_NUMBER + ", " + DATE + ") " +
+           "VALUES (" + searchColumns(row) + ");";
+  }
+
+  private static String searchColumns(String row){
+    return row + "." + ID + ", " +
+           row + "." + INTRODUCEE_NAME + ", " +
+           "COALESCE(" + row + "." + INTRODUCEE_NUMBER + ", ''), " +
+           introducerName(row) + ", " +
+           introducerNumber(row) + ", " +
+           // Like TI_Utils.INTRODUCTION_DATE_PATTERN, in 24h format
+           "strftime('%Y/%m/%d %H:%M:%S', " + row + "." + TIMESTAMP + " / 1000, 'unixepoch', 'localtime')";
+  }
+
+  private static String introducerName(String row){
+    return "COALESCE((SELECT COALESCE(NULLIF(" + RecipientTable.SYSTEM_JOINED_NAME + ", ''), " + RECIPIENT_PROFILE_JOINED_NAME + ")" + introducerRecipient(row) + "), '')";
+  }
+
+  private static String introducerNumber(String row){
+    return "COALESCE((SELECT " + RecipientTable.E164 + introducerRecipient(row) + "), '')";
+  }
+
+  private static String introducerRecipient(String row){
+    return " FROM " + RecipientTable.TABLE_NAME + " WHERE " + RecipientTable.ACI_COLUMN + " = " + row + "." + INTRODUCER_SERVICE_ID;
+  }
+
+  /**
+   * Inserts a new introduction, or only refreshes the timestamp if the same introducer already introduced
+   * the same introducee with the same identity key. Either way the id and the state of the affected row are returned.
+   */
+  private static final String UPSERT_INTRODUCTION =
+      "INSERT INTO " + TABLE_NAME + " (" +
+      STATE + ", " +
+      INTRODUCER_SERVICE_ID + ", " +
+      INTRODUCEE_SERVICE_ID + ", " +
+      INTRODUCEE_NAME + ", " +
+      INTRODUCEE_NUMBER + ", " +
+      INTRODUCEE_PUBLIC_IDENTITY_KEY + ", " +
+      PREDICTED_FINGERPRINT + ", " +
+      TIMESTAMP + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?) " +
+      "ON CONFLICT (" + INTRODUCER_SERVICE_ID + ", " + INTRODUCEE_SERVICE_ID + ", " + INTRODUCEE_PUBLIC_IDENTITY_KEY + ") WHERE " + UNIQUE_INTRODUCTION_WHERE + " " +
+      "DO UPDATE SET " + TIMESTAMP + " = excluded." + TIMESTAMP + " " +
+      "RETURNING " + ID + ", " + STATE + ";";
 
   private static final String CLEAR_TABLE = "DELETE FROM " + TABLE_NAME + ";";
 
@@ -102,19 +281,44 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
     int            res = db.delete(TABLE_NAME, "", new String[]{});
   }
 
-  private static final String[] TI_ALL_PROJECTION = new String[]{
-      ID,
-      INTRODUCER_SERVICE_ID,
-      INTRODUCEE_SERVICE_ID,
-      INTRODUCEE_PUBLIC_IDENTITY_KEY,
-      INTRODUCEE_NAME,
-      INTRODUCEE_NUMBER,
-      PREDICTED_FINGERPRINT,
-      TIMESTAMP,
-      STATE
-  };
+  // Maps every non stale state onto its stale counterpart, used to turn introductions stale in a single statement.
+  private static final String STALE_STATE_CASE = buildStaleStateCase();
 
+  private static String buildStaleStateCase(){
+    StringBuilder builder = new StringBuilder("CASE " + STATE);
+    for (State s : State.values()) {
+      if (!s.isStale()) {
+        builder.append(" WHEN ").append(s.toInt()).append(" THEN ").append(s.toStale().toInt());
+      }
+    }
+    return builder.append(" ELSE ").append(STATE).append(" END").toString();
+  }
 
+  // Maps every state that changes when the user accepts (or rejects) an introduction onto the resulting state, @see changeIntroductionStates
+  private static final String ACCEPT_STATE_CASE = buildTrustStateCase(true);
+  private static final String ACCEPT_FROM       = buildTrustFromStates(true);
+  private static final String REJECT_STATE_CASE = buildTrustStateCase(false);
+  private static final String REJECT_FROM       = buildTrustFromStates(false);
+
+  private static String buildTrustStateCase(boolean trust){
+    StringBuilder builder = new StringBuilder("CASE " + STATE);
+    for (State s : State.values()) {
+      if (!s.isStale() && s.withTrust(trust) != s) {
+        builder.append(" WHEN ").append(s.toInt()).append(" THEN ").append(s.withTrust(trust).toInt());
+      }
+    }
+    return builder.append(" ELSE ").append(STATE).append(" END").toString();
+  }
+
+  private static String buildTrustFromStates(boolean trust){
+    List<String> states = new ArrayList<>();
+    for (State s : State.values()) {
+      if (!s.isStale() && s.withTrust(trust) != s) {
+        states.add(String.valueOf(s.toInt()));
+      }
+    }
+    return "(" + TextUtils.join(", ", states) + ")";
+  }
 
   /**
    * All states in the FSM for Introductions.
@@ -165,6 +369,33 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
       };
     }
 
+    /**
+     * @return the stale counterpart of this state. PRE: state is not already stale.
+     */
+    public State toStale(){
+      return switch (this) {
+        case PENDING -> STALE_PENDING;
+        case ACCEPTED -> STALE_ACCEPTED;
+        case REJECTED -> STALE_REJECTED;
+        case PENDING_CONFLICTING -> STALE_PENDING_CONFLICTING;
+        case ACCEPTED_CONFLICTING -> STALE_ACCEPTED_CONFLICTING;
+        case REJECTED_CONFLICTING -> STALE_REJECTED_CONFLICTING;
+        default -> throw new AssertionError("State: " + this + " was illegal or already stale.");
+      };
+    }
+
+    /**
+     * @param trust true if the user accepts the introduction, false if they reject it.
+     * @return the state the introduction is in afterwards. PRE: state is not stale.
+     */
+    public State withTrust(boolean trust){
+      return switch (this) {
+        case PENDING, ACCEPTED, REJECTED -> trust ? ACCEPTED : REJECTED;
+        case PENDING_CONFLICTING, ACCEPTED_CONFLICTING, REJECTED_CONFLICTING -> trust ? ACCEPTED_CONFLICTING : REJECTED_CONFLICTING;
+        default -> throw new AssertionError("State: " + this + " is stale and may not be interacted with.");
+      };
+    }
+
     public boolean isPending(){
       return switch (this) {
         case PENDING, PENDING_CONFLICTING, STALE_PENDING, STALE_PENDING_CONFLICTING -> true;
@@ -194,66 +425,152 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
     }
   }
 
+  /**
+   * One committed modification of an introduction, @see addChangeListener
+   */
+  public static final class Change {
+    public enum Kind {
+      // Also reported for incoming duplicates of which only the timestamp was refreshed.
+      INSERTED,
+      UPDATED,
+      DELETED
+    }
+
+    public final          Kind   kind;
+    public final          long   introductionId;
+    // null for DELETED
+    public final @Nullable State  state;
+    // The introducer after the change, null if the change did not modify it.
+    public final @Nullable String introducerServiceId;
+
+    Change(@NonNull Kind kind, long introductionId, @Nullable State state){
+      this(kind, introductionId, state, null);
+    }
+
+    Change(@NonNull Kind kind, long introductionId, @Nullable State state, @Nullable String introducerServiceId){
+      this.kind = kind;
+      this.introductionId = introductionId;
+      this.state = state;
+      this.introducerServiceId = introducerServiceId;
+    }
+  }
+
+  public interface ChangeListener {
+    /**
+     * Called on the thread that committed the changes, once per transaction. Keep it short and hand off any real work.
+     * @param changes in the order they were made, never empty.
+     */
+    @WorkerThread void onChanges(@NonNull List<Change> changes);
+  }
+
+  private final Set<ChangeListener> changeListeners = new CopyOnWriteArraySet<>();
+
+  // State transitions of the introductions of one introducee are serialized on the stripe of its service id, @see runTransition
+  private static final int     INTRODUCEE_STRIPES = 64;
+  private final ReentrantLock[] introduceeStripes = new ReentrantLock[INTRODUCEE_STRIPES];
+
   public TI_Database(Context context, SignalDatabase databaseHelper) {
     super(context, databaseHelper);
+    for (int i = 0; i < INTRODUCEE_STRIPES; i++) {
+      introduceeStripes[i] = new ReentrantLock();
+    }
   }
 
+  /**
+   * Runs the read-decide-write sequence of a state transition for one introducee in a single transaction,
+   * serialized with every other transition of the same introducee. Transitions of other introducees only wait for their writes.
+   * PRE: not called inside a transaction. The stripe is always taken before the database, never the other way round:
+   * taking it inside a transaction could deadlock with a transition waiting for the database while holding the stripe.
+   * Every public method that changes the state or the introducer of introductions is a transition, @see TI_DatabaseGlue
+   * Helpers that write inside a transition (e.g., turnStale) do not open transactions of their own.
+   */
+  @WorkerThread
+  private <T> T runTransition(@NonNull String introduceeServiceId, @NonNull Supplier<T> transition){
+    return runTransition(Collections.singleton(introduceeServiceId), transition);
+  }
 
+  /**
+   * Same as above for a transition touching the introductions of several introducees.
+   * Stripes are always taken in ascending order, such that such transitions cannot deadlock each other.
+   * Logs how long the transition waited for its stripes and how long its transaction took.
+   */
+  @WorkerThread
+  private <T> T runTransition(@NonNull Collection<String> introduceeServiceIds, @NonNull Supplier<T> transition){
+    SQLiteDatabase writeableDatabase = getSignalWritableDatabase();
+    if (writeableDatabase.inTransaction()) {
+      throw new AssertionError(TAG + " Introduction state transitions may not be nested in a transaction.");
+    }
+    Stopwatch        stopwatch     = new Stopwatch("transition of " + introduceeServiceIds.size() + " introducees");
+    TreeSet<Integer> stripeIndices = new TreeSet<>();
+    for (String introduceeServiceId : introduceeServiceIds) {
+      stripeIndices.add((introduceeServiceId.hashCode() & Integer.MAX_VALUE) % INTRODUCEE_STRIPES);
+    }
+    for (int i : stripeIndices) {
+      introduceeStripes[i].lock();
+    }
+    stopwatch.split("stripes");
+    try {
+      writeableDatabase.beginTransaction();
+      try {
+        T result = transition.get();
+        writeableDatabase.setTransactionSuccessful();
+        return result;
+      } finally {
+        writeableDatabase.endTransaction();
+      }
+    } finally {
+      for (int i : stripeIndices.descendingSet()) {
+        introduceeStripes[i].unlock();
+      }
+      stopwatch.split("transaction");
+      stopwatch.stop(TAG);
+    }
+  }
+
+  @Override public void addChangeListener(@NonNull ChangeListener listener){
+    changeListeners.add(listener);
+  }
 
+  @Override public void removeChangeListener(@NonNull ChangeListener listener){
+    changeListeners.remove(listener);
+  }
 
   /**
-   * Used to update a database entry. Pass all the data that should stay the same and change what needs to be updated.
-   * @return Content Values for the updated entry
+   * Hands the changes to the listeners once the outermost transaction on db committed, right away if there is none.
+   * Changes of transactions that are rolled back are never published.
    */
-  private @NonNull ContentValues buildContentValuesForUpdate(@NonNull Long introductionId,
-                                                    @NonNull State state,
-                                                    @Nullable String introducerServiceId,
-                                                    @NonNull String serviceId,
-                                                    @NonNull String name,
-                                                    @Nullable String number,
-                                                    @NonNull String identityKey,
-                                                    @NonNull String predictedFingerprint,
-                                                    @NonNull Long timestamp){
-    ContentValues cv = new ContentValues();
-    cv.put(ID, introductionId);
-    cv.put(STATE, state.toInt());
-    cv.put(INTRODUCER_SERVICE_ID, introducerServiceId);
-    cv.put(INTRODUCEE_SERVICE_ID, serviceId);
-    cv.put(INTRODUCEE_NAME, name);
-    cv.put(INTRODUCEE_NUMBER, number);
-    cv.put(INTRODUCEE_PUBLIC_IDENTITY_KEY, identityKey);
-    cv.put(PREDICTED_FINGERPRINT, predictedFingerprint);
-    cv.put(TIMESTAMP, timestamp);
-    return cv;
+  private void publishChanges(@NonNull SQLiteDatabase db, @NonNull List<Change> changes){
+    if (changes.isEmpty() || changeListeners.isEmpty()) {
+      return;
+    }
+    List<Change> committed = Collections.unmodifiableList(changes);
+    db.runPostSuccessfulTransaction(() -> {
+      for (ChangeListener listener : changeListeners) {
+        listener.onChanges(committed);
+      }
+    });
   }
 
   /**
-   * @param c a cursor pointing to a fully populated query result in the database.
-   * @param timestamp the new timestamp to insert.
+   * @throws IllegalArgumentException if the key is not Base64.
    */
-  @SuppressLint("Range") private @NonNull ContentValues buildContentValuesForTimestampUpdate(Cursor c, long timestamp){
-    return buildContentValuesForUpdate(c.getString(c.getColumnIndex(ID)),
-                                       c.getString(c.getColumnIndex(STATE)),
-                                       c.getString(c.getColumnIndex(INTRODUCER_SERVICE_ID)),
-                                       c.getString(c.getColumnIndex(INTRODUCEE_SERVICE_ID)),
-                                       c.getString(c.getColumnIndex(INTRODUCEE_NAME)),
-                                       c.getString(c.getColumnIndex(INTRODUCEE_NUMBER)),
-                                       c.getString(c.getColumnIndex(INTRODUCEE_PUBLIC_IDENTITY_KEY)),
-                                       c.getString(c.getColumnIndex(PREDICTED_FINGERPRINT)),
-                                       String.valueOf(timestamp));
+  private static @NonNull byte[] identityKeyToBlob(@NonNull String encodedIdentityKey){
+    try {
+      return Base64.decode(encodedIdentityKey);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed identity key: " + encodedIdentityKey, e);
+    }
   }
 
   /**
-   * Convenience function when changing state of an introduction
-   * @param introduction the introduction to change the state of
-   * @param s new state
-   * @return Correctly populated ContentValues
+   * @throws IllegalArgumentException if predictedFingerprint is not a safety number.
    */
-  @SuppressLint("Range") public @NonNull ContentValues buildContentValuesForStateUpdate(TI_Data introduction, State s){
-    ContentValues values = buildContentValuesForUpdate(introduction);
-    values.remove(STATE);
-    values.put(STATE, s.toInt());
-    return values;
+  private static @NonNull byte[] fingerprintToBlob(@NonNull String predictedFingerprint){
+    byte[] packed = TI_BinaryMessage.packFingerprintOrNull(predictedFingerprint);
+    if (packed == null) {
+      throw new IllegalArgumentException("Malformed safety number: " + predictedFingerprint);
+    }
+    return packed;
   }
 
   @Override public SQLiteDatabase getSignalWritableDatabase() {
@@ -287,241 +604,121 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
     cv.put(INTRODUCEE_SERVICE_ID, introduceeServiceId);
     cv.put(INTRODUCEE_NAME, introduceeName);
     cv.put(INTRODUCEE_NUMBER, introduceeNumber);
-    cv.put(INTRODUCEE_PUBLIC_IDENTITY_KEY, introduceeIdentityKey);
-    cv.put(PREDICTED_FINGERPRINT, predictedSecurityNumber);
+    cv.put(INTRODUCEE_PUBLIC_IDENTITY_KEY, identityKeyToBlob(introduceeIdentityKey));
+    cv.put(PREDICTED_FINGERPRINT, fingerprintToBlob(predictedSecurityNumber));
     cv.put(TIMESTAMP, timestamp);
     return cv;
   }
 
-
-  /**
-   * Meant for values pulled directly from the Database through a Query.
-   * PRE: None of the Strings may be empty or Null.
-   *
-   * @param introductionId Expected to represent a Long > 0.
-   * @param state Expected to represent an Int between 0 and 7 (inclusive).
-   * @param introducerServiceId
-   * @param introduceeServiceId
-   * @param name
-   * @param number
-   * @param identityKey
-   * @param predictedFingerprint
-   * @param timestamp Expected to represent a Long.
-   * @return Propperly populated content values, NumberFormatException/AssertionError if a value was invalid.
-   */
-  private @NonNull ContentValues buildContentValuesForUpdate(@NonNull String introductionId,
-                                                             @NonNull String state,
-                                                             @NonNull String introducerServiceId,
-                                                             @NonNull String introduceeServiceId,
-                                                             @NonNull String name,
-                                                             @Nullable String number,
-                                                             @NonNull String identityKey,
-                                                             @NonNull String predictedFingerprint,
-                                                             @NonNull String timestamp) throws NumberFormatException{
-    Preconditions.checkArgument(!introductionId.isEmpty() &&
-                                !state.isEmpty() &&
-                                !introducerServiceId.isEmpty() &&
-                                !introduceeServiceId.isEmpty() &&
-                                !name.isEmpty() &&
-                                !number.isEmpty() &&
-                                !identityKey.isEmpty() &&
-                                !predictedFingerprint.isEmpty() &&
-                                !timestamp.isEmpty());
-    long introId = Long.parseLong(introductionId);
-    Preconditions.checkArgument(introId > 0);
-    int s = Integer.parseInt(state);
-    Preconditions.checkArgument(s >= 0 && s <= 7);
-    long timestampLong = Long.parseLong(timestamp);
-    Preconditions.checkArgument(timestampLong > 0);
-    return buildContentValuesForUpdate(introId,
-                                       State.forState(s),
-                                       introducerServiceId,
-                                       introduceeServiceId,
-                                       name,
-                                       number,
-                                       identityKey,
-                                       predictedFingerprint,
-                                       timestampLong);
-  }
-
-  /**
-   *
-   * @param introduction PRE: none of it's fields may be null, except introducerServiceId (forgotten introducer)
-   * @return A populated contentValues object, to use for updates.
-   */
-  private @NonNull ContentValues buildContentValuesForUpdate(@NonNull TI_Data introduction){
-    Preconditions.checkNotNull(introduction.getId());
-    Preconditions.checkNotNull(introduction.getState());
-    Preconditions.checkNotNull(introduction.getPredictedSecurityNumber());
-    return buildContentValuesForUpdate(introduction.getId(),
-                                       introduction.getState(),
-                                       introduction.getIntroducerServiceId(),
-                                       introduction.getIntroduceeServiceId(),
-                                       introduction.getIntroduceeName(),
-                                       introduction.getIntroduceeNumber(),
-                                       introduction.getIntroduceeIdentityKey(),
-                                       introduction.getPredictedSecurityNumber(),
-                                       introduction.getTimestamp());
-  }
-
-  /**
-   *
-   * @param introduction PRE: none of it's fields (except nr.) may be null, state != stale.
-   * @return A populated contentValues object, to use when turning introductions stale.
-   */
-  private @NonNull ContentValues buildContentValuesForStale(@NonNull TI_Data introduction){
-    Preconditions.checkNotNull(introduction.getId());
-    Preconditions.checkNotNull(introduction.getState());
-    Preconditions.checkNotNull(introduction.getIntroducerServiceId());
-    Preconditions.checkNotNull(introduction.getPredictedSecurityNumber());
-    Preconditions.checkArgument(!introduction.getState().isStale());
-    // Find stale state
-    State newState = switch (introduction.getState()) {
-      case PENDING -> State.STALE_PENDING;
-      case ACCEPTED -> State.STALE_ACCEPTED;
-      case REJECTED -> State.STALE_REJECTED;
-      case PENDING_CONFLICTING -> State.STALE_PENDING_CONFLICTING;
-      case ACCEPTED_CONFLICTING -> State.STALE_ACCEPTED_CONFLICTING;
-      case REJECTED_CONFLICTING -> State.STALE_REJECTED_CONFLICTING;
-      default -> throw new AssertionError("State: " + introduction.getState() + " was illegal or already stale.");
-    };
-
-    return buildContentValuesForUpdate(introduction.getId(),
-                                       newState,
-                                       introduction.getIntroducerServiceId(),
-                                       introduction.getIntroduceeServiceId(),
-                                       introduction.getIntroduceeName(),
-                                       introduction.getIntroduceeNumber(),
-                                       introduction.getIntroduceeIdentityKey(),
-                                       introduction.getPredictedSecurityNumber(),
-                                       introduction.getTimestamp());
-  }
-
   // TODO: Given a contact that cannot be contacted (hidden, no username/phone nr.) we cannot determine from the pending introduction, if there was a conflict
   // or the thing turned stale in the meantime when a session is initiated. Thus we must turn it stale immediately from whatever state it was in...
 
-  private long insertIntroduction(TI_Data data, State state){
-    Preconditions.checkArgument(state == State.PENDING || state == State.PENDING_CONFLICTING);
-    TI_DatabaseGlue db = SignalDatabase.tiDatabase();
-    ContentValues values = db.buildContentValuesForInsert(state,
-                                                          data.getIntroducerServiceId(),
-                                                          data.getIntroduceeServiceId(),
-                                                          data.getIntroduceeName(),
-                                                          data.getIntroduceeNumber(),
-                                                          data.getIntroduceeIdentityKey(),
-                                                          data.getPredictedSecurityNumber(),
-                                                          data.getTimestamp());
-    SQLiteDatabase writeableDatabase = db.getSignalWritableDatabase();
-    long id = writeableDatabase.insert(TABLE_NAME, null, values);
-    Log.i(TAG, "Inserted new introduction for: " + data.getIntroduceeName() + ", with id: " + id);
-    return id;
-  }
-
   /**
    * This is the START state of the introduction FSM.
    * Check if there is a detectable conflict (only possible if the service ID maps to a recipient ID)
-   * and set the state accordingly for the insert
+   * and return the state the introduction must be inserted with.
    *
-   * @param data the new introduction to insert.
-   * @return insertion id of introduction.
+   * @param data the new introduction.
+   * @return PENDING or PENDING_CONFLICTING
    */
-  private long insertKnownNewIntroduction(TI_Data data){
+  private @NonNull State initialState(@NonNull TI_Data data){
     Optional<RecipientId> introduceeOpt =  SignalDatabase.recipients().getByServiceId(ServiceId.parseOrThrow(data.getIntroduceeServiceId()));
     RecipientId introduceeId = introduceeOpt.orElse(null);
     if(introduceeId != null) {
       // The recipient already exists, check if the identity key matches what we already have in the database
-      String identityKey;
       try {
-        identityKey = TI_Utils.getEncodedIdentityKey(introduceeId);
-        if(!data.getIntroduceeIdentityKey().equals(identityKey)){
-          return insertIntroduction(data, State.PENDING_CONFLICTING);
+        String identityKey = TI_Utils.getEncodedIdentityKey(introduceeId);
+        // Compare the keys, not their encodings
+        if(!Arrays.equals(identityKeyToBlob(data.getIntroduceeIdentityKey()), identityKeyToBlob(identityKey))){
+          return State.PENDING_CONFLICTING;
         }
       } catch (MissingIdentityException e){
         // Continue to end condition, recipient is unknown.
       }
     }
-    return insertIntroduction(data, State.PENDING);
+    return State.PENDING;
+  }
+
+  /**
+   * Executes UPSERT_INTRODUCTION for the introduction.
+   * @return the inserted or updated introduction with the state it has now, a duplicate keeps the state it already had.
+   */
+  private @NonNull Change upsertIntroduction(@NonNull SQLiteDatabase db, @NonNull TI_Data data, @NonNull State state){
+    Preconditions.checkArgument(state == State.PENDING || state == State.PENDING_CONFLICTING);
+    Preconditions.checkNotNull(data.getIntroducerServiceId());
+    Preconditions.checkNotNull(data.getIntroduceeName());
+    Preconditions.checkNotNull(data.getPredictedSecurityNumber());
+    Object[] args = new Object[] {
+        state.toInt(),
+        data.getIntroducerServiceId(),
+        data.getIntroduceeServiceId(),
+        data.getIntroduceeName(),
+        data.getIntroduceeNumber(),
+        identityKeyToBlob(data.getIntroduceeIdentityKey()),
+        fingerprintToBlob(data.getPredictedSecurityNumber()),
+        data.getTimestamp()
+    };
+    try (Cursor c = db.rawQuery(UPSERT_INTRODUCTION, args)) {
+      if (!c.moveToFirst()) {
+        throw new SQLiteException("Upsert of introduction returned no row!");
+      }
+      return new Change(Change.Kind.INSERTED, c.getLong(0), State.forState(c.getInt(1)));
+    }
   }
 
   /**
    *
-   *  We first check if an introduction with the same introducer service id, introducee service id, and identity key
-   *  already exists in the database to avoid duplication.
-   *  If we find a duplicate, we simply update the timestamp to the most recent one.
+   *  If an introduction with the same introducer service id, introducee service id, and identity key
+   *  already exists in the database we simply update the timestamp to the most recent one (enforced by the unique index).
    *  Otherwise the start of the introduction FSM is reached.
    *
    *  @param data the incoming introduction
-   * @return insertion id of introduction.
+   * @return id of the inserted or updated introduction, -1 if the write failed.
    */
-  @SuppressLint("Range")
   @WorkerThread
   @Override
   public long incomingIntroduction(@NonNull TI_Data data){
-    // Fetch Data to compare if present
-    // TODO: Adapt when we are more clear about what the data will be...
-    // TODO: reimplment...
-    StringBuilder selectionBuilder = new StringBuilder();
-    selectionBuilder.append(String.format("%s=?", INTRODUCER_SERVICE_ID));
-    String andAppend = " AND %s=?";
-    selectionBuilder.append(String.format(andAppend, INTRODUCEE_SERVICE_ID));
-    selectionBuilder.append(String.format(andAppend, INTRODUCEE_PUBLIC_IDENTITY_KEY));
-
-    String[] args = SqlUtil.buildArgs(data.getIntroducerServiceId(),
-                                      data.getIntroduceeServiceId(),
-                                      data.getIntroduceeIdentityKey());
-
-    SQLiteDatabase writeableDatabase = databaseHelper.getSignalWritableDatabase();
-    Cursor c = writeableDatabase.query(TABLE_NAME, TI_ALL_PROJECTION, selectionBuilder.toString(), args, null, null, null);
-    // We found a matching introduction, we will update it and not insert a new one.
-    if (c.getCount() == 1){
-      c.moveToFirst();
-      long result = writeableDatabase.update(TABLE_NAME, buildContentValuesForTimestampUpdate(c, data.getTimestamp()), ID + " = ?", SqlUtil.buildArgs(c.getInt(c.getColumnIndex(ID))));
-      Log.i(TAG, "Updated timestamp of introduction " + result + " to: " + TI_Utils.INTRODUCTION_DATE_PATTERN.format(data.getTimestamp()));
-      c.close();
-      return result;
-    }
-    if(c.getCount() != 0)
-      throw new AssertionError(TAG + " When checking for existing Introductions, there is one entry or none, nothing else is valid.");
-    c.close();
-    return insertKnownNewIntroduction(data);
+    return incomingIntroductions(Collections.singletonList(data)).get(0);
   }
 
-
   /**
-   * Modify the state of an introduction and call to modify the verified state of the introducee if appropriate
-   * @param introduction the introduction to be modified. Their state cannot be any of the PENDING states as they are final. ID =! null.
-   * @param newState the new state for the introduction. Cannot be PENDING
-   * @param logMessage what should be written on the logcat for the modification.
-   * @return  if the insertion succeeded or failed
+   * Batched version of incomingIntroduction. All introductions are written in a single transaction,
+   * the statement is compiled once and cached by the connection.
+   *
+   * @param introductions the incoming introductions, typically all introductions of one message.
+   * @return the id of each inserted or updated introduction in the order they were passed, -1 for those that failed.
    */
   @WorkerThread
-  private boolean changeIntroductionState(@NonNull TI_Data introduction, @NonNull State newState, @NonNull String logMessage) {
-    // We are setting the pending states directly when the introduction is first received. There is no other transition to this state.
-    Preconditions.checkArgument(newState != State.PENDING);
-    Preconditions.checkArgument(introduction.getId() != null);
-
-    // Modify introduction
-    ContentValues newValues = buildContentValuesForStateUpdate(introduction, newState);
-    SQLiteDatabase writeableDatabase = getSignalWritableDatabase();
-    long result = writeableDatabase.update(TABLE_NAME, newValues, ID + " = ?", SqlUtil.buildArgs(introduction.getId()));
-
-    if ( result > 0 ){
-      // Log message on success
-      Log.i(TAG, logMessage);
-      // Check if a recipient may change verification status as a result of this operation
-      RecipientId introduceeID = TI_Utils.getRecipientIdOrUnknown(introduction.getIntroduceeServiceId());
-      if(!introduceeID.isUnknown()){
-        TI_IdentityTable.VerifiedStatus previousIntroduceeVerification = SignalDatabase.tiIdentityDatabase().getVerifiedStatus(introduceeID);
-        if (previousIntroduceeVerification == null){
-          throw new AssertionError("Unexpected missing verification status for " + introduction.getIntroduceeName());
+  @Override
+  public @NonNull List<Long> incomingIntroductions(@NonNull List<TI_Data> introductions){
+    List<Long>     result            = new ArrayList<>(introductions.size());
+    SQLiteDatabase writeableDatabase = databaseHelper.getSignalWritableDatabase();
+    Stopwatch      stopwatch         = new Stopwatch("store " + introductions.size() + " incoming introductions");
+    writeableDatabase.beginTransaction();
+    try {
+      List<Change> changes = new ArrayList<>(introductions.size());
+      for (TI_Data data : introductions) {
+        long id;
+        try {
+          Change change = upsertIntroduction(writeableDatabase, data, initialState(data));
+          id = change.introductionId;
+          changes.add(change);
+          Log.i(TAG, "Stored introduction for: " + data.getIntroduceeName() + ", with id: " + id + " and timestamp: " + TI_Utils.INTRODUCTION_DATE_PATTERN.format(data.getTimestamp()));
+        } catch (SQLiteException | IllegalArgumentException | NullPointerException e) {
+          // Only this introduction is dropped, not the rest of the batch.
+          Log.e(TAG, "Storing introduction for: " + data.getIntroduceeName() + " failed!", e);
+          id = -1;
         }
-        SignalDatabase.tiIdentityDatabase().modifyIntroduceeVerification(introduction.getIntroduceeServiceId(), previousIntroduceeVerification, newState, logMessage);
-      } // if introduceeID is unknnown we do not have the recipient as a conversation partner yet and can skip any verification modification
-      return true;
+        result.add(id);
+      }
+      publishChanges(writeableDatabase, changes);
+      writeableDatabase.setTransactionSuccessful();
+    } finally {
+      writeableDatabase.endTransaction();
+      stopwatch.split("transaction");
+      stopwatch.stop(TAG);
     }
-    // don't touch the verification state of the introducee if the modification failed
-    Log.e(TAG, "State modification of introduction: " + introduction.getId() + " failed!");
-    return false;
+    return result;
   }
 
   /**
@@ -530,79 +727,195 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
    */
   @WorkerThread
   public boolean atLeastOneIntroductionIs(State state, String introduceeServiceId){
-    final String selection = String.format("%s=?", INTRODUCEE_SERVICE_ID)
-                                    + String.format(" AND %s=?", STATE);
-    String[] args = SqlUtil.buildArgs(introduceeServiceId,
-                                      state.toInt());
-    SQLiteDatabase writeableDatabase = getSignalWritableDatabase();
-    Cursor c = writeableDatabase.query(TABLE_NAME, TI_ALL_PROJECTION, selection, args, null, null, null);
+    String query = "SELECT EXISTS(SELECT 1 FROM " + SUMMARY_TABLE_NAME + " WHERE " + INTRODUCEE_SERVICE_ID + " = ? AND " + STATE + " = ? AND " + INTRODUCTION_COUNT + " > 0)";
+    String[] args = SqlUtil.buildArgs(introduceeServiceId, state.toInt());
+    try (Cursor c = databaseHelper.getSignalReadableDatabase().rawQuery(query, args)) {
+      return c.moveToFirst() && c.getInt(0) == 1;
+    }
+  }
 
-    return c.getCount() >= 1;
-   }
+  /**
+   * Reads the number of introductions of an introducee per state from the summary table.
+   * @param introduceeServiceId The serviceID of the introducee
+   * @return number of introductions for each state, states without introductions are absent.
+   */
+  @WorkerThread
+  @Override
+  public @NonNull Map<State, Integer> getIntroductionStateCounts(@NonNull String introduceeServiceId){
+    String query = "SELECT " + STATE + ", " + INTRODUCTION_COUNT + " FROM " + SUMMARY_TABLE_NAME + " WHERE " + INTRODUCEE_SERVICE_ID + " = ?";
+    Map<State, Integer> counts = new EnumMap<>(State.class);
+    try (Cursor c = databaseHelper.getSignalReadableDatabase().rawQuery(query, SqlUtil.buildArgs(introduceeServiceId))) {
+      while (c.moveToNext()) {
+        if (c.getInt(1) > 0) {
+          counts.put(State.forState(c.getInt(0)), c.getInt(1));
+        }
+      }
+    }
+    return counts;
+  }
 
   /**
-   * Check database for any preexisting introduction and modify verification state of the introducee if appropriate.
+   * Check database for any preexisting introduction and turn those stale that do not match the identity key of the new contact.
    * @param serviceId the service ID of the new contact
+   * @param encodedIdentityKey the identity key of the new contact
+   * PRE: not called inside a transaction, @see runTransition
+   * @return the ids of the introductions that were turned stale.
+   */
+  @WorkerThread
+  @Override public @NonNull List<Long> handleDanglingIntroductions(String serviceId, String encodedIdentityKey) {
+    Object[]   args     = new Object[] { serviceId, identityKeyToBlob(encodedIdentityKey) };
+    List<Long> staleIds = runTransition(serviceId, () -> turnStale(INTRODUCEE_SERVICE_ID + " = ? AND " + INTRODUCEE_PUBLIC_IDENTITY_KEY + " != ?", args));
+    Log.i(TAG, "Turned " + staleIds.size() + " dangling introductions for " + serviceId + " stale.");
+    return staleIds;
+  }
+
+  /**
+   * Turns every introduction matching the selection stale in a single statement.
+   * Introductions that are already stale are left untouched.
+   * PRE: runs inside runTransition for the introducees of the selected introductions.
+   * @return the ids of the introductions that were turned stale.
    */
   @WorkerThread
-  @Override public void handleDanglingIntroductions(String serviceId, String encodedIdentityKey) {
-    final String selection = String.format("%s=?", INTRODUCEE_SERVICE_ID);
-    String[] args = SqlUtil.buildArgs(serviceId);
+  private @NonNull List<Long> turnStale(@NonNull String selection, @NonNull Object[] args){
+    String query = "UPDATE " + TABLE_NAME + " SET " + STATE + " = " + STALE_STATE_CASE +
+                   " WHERE " + selection + " AND " + STATE + " < " + State.STALE_PENDING.toInt() +
+                   " RETURNING " + ID + ", " + STATE;
+    List<Long>     staleIds          = new ArrayList<>();
+    List<Change>   changes           = new ArrayList<>();
     SQLiteDatabase writeableDatabase = getSignalWritableDatabase();
-    Cursor c = writeableDatabase.query(TABLE_NAME, TI_ALL_PROJECTION, selection, args, null, null, null);
-    ArrayList<TI_Data> staleIntroductions = new ArrayList<>();
-    if (c.getCount() >= 1) {
-      IntroductionReader reader = new IntroductionReader(c);
-      TI_Data current;
-      do {
-        current = reader.getNext();
-        if(!encodedIdentityKey.equals(current.getIntroduceeIdentityKey())){
-          // Add this datapoint to the introductions that must be turned stale
-          staleIntroductions.add(current);
-        }
-      } while (reader.hasNext());
-      try {
-        reader.close();
-      } catch (IOException e) {
-        e.printStackTrace();
-        throw new AssertionError("Error occured while trying to close the cursor to dangling Introductions for " + current.getIntroduceeName());
-      }
-      // Turn all introductions stale that had the incorrect identity key
-      for (TI_Data staleIntro: staleIntroductions) {
-        ContentValues cv = buildContentValuesForStale(staleIntro.getIntroduction());
-        long result = writeableDatabase.update(TABLE_NAME, cv, ID + " = ?", SqlUtil.buildArgs(staleIntro.getId()));
-        if (result < 0){
-          throw new AssertionError(TAG + " Could not turn introduction for " + staleIntro.getIntroduceeName() + " stale!");
-        }
+    if (!writeableDatabase.inTransaction()) {
+      throw new AssertionError(TAG + " Introductions may only be turned stale inside a transition.");
+    }
+    try (Cursor c = writeableDatabase.rawQuery(query, args)) {
+      while (c.moveToNext()) {
+        staleIds.add(c.getLong(0));
+        changes.add(new Change(Change.Kind.UPDATED, c.getLong(0), State.forState(c.getInt(1))));
       }
     }
+    publishChanges(writeableDatabase, changes);
+    // TODO: For multidevice, syncing would be handled here
+    return staleIds;
   }
 
-
   /**
    * Expects the introducee to have been fetched.
-   * Expects introduction to already be present in database
+   * Expects introduction to already be present in database. Only its id is used, the stored state decides the new one, @see State.withTrust
    * @param introduction PRE: introduction.id cannot be null
-   * @return true if success, false otherwise
+   * @return true if success, false otherwise (e.g., it turned stale in the meantime)
    */
   @WorkerThread
   @Override
   public boolean acceptIntroduction(TI_Data introduction){
     Preconditions.checkArgument(introduction.getId() != null);
-    return changeIntroductionState(introduction, State.ACCEPTED, "Accepted introduction for: " + introduction.getIntroduceeName());
+    return !acceptIntroductions(Collections.singletonList(introduction.getId())).isEmpty();
   }
 
   /**
    * Expects the introducee to have been fetched.
-   * Expects introduction to already be present in database.
+   * Expects introduction to already be present in database. Only its id is used, the stored state decides the new one, @see State.withTrust
    * @param introduction PRE: introduction.id cannot be null
-   * @return true if success, false otherwise
+   * @return true if success, false otherwise (e.g., it turned stale in the meantime)
    */
   @WorkerThread
   @Override
   public boolean rejectIntroduction(TI_Data introduction){
     Preconditions.checkArgument(introduction.getId() != null);
-    return changeIntroductionState(introduction, State.REJECTED, "Rejected introduction for: " + introduction.getIntroduceeName());
+    return !rejectIntroductions(Collections.singletonList(introduction.getId())).isEmpty();
+  }
+
+  /**
+   * Set oriented version of acceptIntroduction. Conflicting introductions become ACCEPTED_CONFLICTING.
+   * @param introductionIds introductions that are stale or already accepted are skipped.
+   * @return the ids of the introductions that were accepted.
+   */
+  @WorkerThread
+  @Override
+  public @NonNull List<Long> acceptIntroductions(@NonNull Collection<Long> introductionIds){
+    return changeIntroductionStates(introductionIds, true);
+  }
+
+  /**
+   * Set oriented version of rejectIntroduction. Conflicting introductions become REJECTED_CONFLICTING.
+   * @param introductionIds introductions that are stale or already rejected are skipped.
+   * @return the ids of the introductions that were rejected.
+   */
+  @WorkerThread
+  @Override
+  public @NonNull List<Long> rejectIntroductions(@NonNull Collection<Long> introductionIds){
+    return changeIntroductionStates(introductionIds, false);
+  }
+
+  /**
+   * Changes the state of all introductions in one transaction, one statement per chunk of ids, the new state is decided by the database
+   * from the stored state. The verification of every affected introducee is recomputed and written once, after all introductions were written.
+   */
+  @WorkerThread
+  private @NonNull List<Long> changeIntroductionStates(@NonNull Collection<Long> introductionIds, boolean trust){
+    List<Long> changedIds = new ArrayList<>();
+    if (introductionIds.isEmpty()) {
+      return changedIds;
+    }
+    List<SqlUtil.Query> idQueries = SqlUtil.buildCollectionQuery(ID, introductionIds);
+    String logAction = trust ? "Accepted" : "Rejected";
+    return runTransition(getIntroducees(idQueries), () -> {
+      SQLiteDatabase           writeableDatabase = getSignalWritableDatabase();
+      List<Change>             changes           = new ArrayList<>();
+      Map<String, Set<State>>  newStates         = new HashMap<>();
+      for (SqlUtil.Query idQuery : idQueries) {
+        String query = "UPDATE " + TABLE_NAME + " SET " + STATE + " = " + (trust ? ACCEPT_STATE_CASE : REJECT_STATE_CASE) +
+                       " WHERE " + idQuery.getWhere() + " AND " + STATE + " IN " + (trust ? ACCEPT_FROM : REJECT_FROM) +
+                       " RETURNING " + ID + ", " + INTRODUCEE_SERVICE_ID + ", " + STATE;
+        try (Cursor c = writeableDatabase.rawQuery(query, idQuery.getWhereArgs())) {
+          while (c.moveToNext()) {
+            State newState = State.forState(c.getInt(2));
+            changedIds.add(c.getLong(0));
+            changes.add(new Change(Change.Kind.UPDATED, c.getLong(0), newState));
+            newStates.computeIfAbsent(c.getString(1), k -> EnumSet.noneOf(State.class)).add(newState);
+          }
+        }
+      }
+      Log.i(TAG, logAction + " " + changedIds.size() + " introductions of " + newStates.size() + " introducees.");
+      publishChanges(writeableDatabase, changes);
+      modifyIntroduceesVerification(newStates, logAction + " introductions for: ");
+      return changedIds;
+    });
+  }
+
+  /**
+   * The introducee of an introduction never changes, the stripes a transition on these introductions takes can be determined up front.
+   * @return the service ids of the introducees of the introductions selected by idQueries.
+   */
+  @WorkerThread
+  private @NonNull Set<String> getIntroducees(@NonNull List<SqlUtil.Query> idQueries){
+    Set<String> introducees = new HashSet<>();
+    for (SqlUtil.Query idQuery : idQueries) {
+      String query = "SELECT DISTINCT " + INTRODUCEE_SERVICE_ID + " FROM " + TABLE_NAME + " WHERE " + idQuery.getWhere();
+      try (Cursor c = databaseHelper.getSignalReadableDatabase().rawQuery(query, idQuery.getWhereArgs())) {
+        while (c.moveToNext()) {
+          introducees.add(c.getString(0));
+        }
+      }
+    }
+    return introducees;
+  }
+
+  /**
+   * Recomputes and writes the verification of every introducee once, after all of its introductions were written.
+   * PRE: runs inside runTransition for all introducees.
+   * @param newStates the distinct states the changed introductions of each introducee ended up in.
+   */
+  @WorkerThread
+  private void modifyIntroduceesVerification(@NonNull Map<String, Set<State>> newStates, @NonNull String logPrefix){
+    IdentityTableGlue tiIdentityDB = SignalDatabase.tiIdentityDatabase();
+    for (Map.Entry<String, Set<State>> introducee : newStates.entrySet()) {
+      RecipientId introduceeID = TI_Utils.getRecipientIdOrUnknown(introducee.getKey());
+      if (introduceeID.isUnknown()) {
+        // not a conversation partner yet, nothing to verify
+        continue;
+      }
+      tiIdentityDB.modifyIntroduceeVerification(introducee.getKey(), tiIdentityDB.getVerifiedStatus(introduceeID), introducee.getValue(),
+                                                logPrefix + introducee.getKey());
+    }
   }
 
   @WorkerThread
@@ -618,10 +931,90 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
     return new IntroductionReader(db.rawQuery(query, null));
   }
 
+  @WorkerThread
+  /**
+   * Fetches one page of displayable introductions, ordered by (timestamp, id).
+   * Pass the timestamp and id of the last introduction of the previous page to get the next one (Long.MIN_VALUE for both to start),
+   * every page is a range scan on the timestamp index regardless of how deep into the history it is.
+   * @param limit maximum number of introductions in the page.
+   * @return IntroductionReader which can be used as an iterator, must be closed.
+   */
+  @Override
+  public IntroductionReader getDisplayableIntroductionsPage(long afterTimestamp, long afterId, int limit) {
+    String query = "SELECT * FROM " + TABLE_NAME +
+                   " WHERE " + INTRODUCER_SERVICE_ID + " IS NOT NULL AND (" + TIMESTAMP + ", " + ID + ") > (?, ?)" +
+                   " ORDER BY " + TIMESTAMP + ", " + ID +
+                   " LIMIT " + limit;
+    SQLiteDatabase db = databaseHelper.getSignalReadableDatabase();
+    return new IntroductionReader(db.rawQuery(query, SqlUtil.buildArgs(afterTimestamp, afterId)));
+  }
+
+  @WorkerThread
+  /**
+   * Fetches the displayable introductions among ids, e.g. those named by a Change.
+   * @return IntroductionReader which can be used as an iterator, must be closed.
+   */
+  @Override
+  public IntroductionReader getDisplayableIntroductions(@NonNull Collection<Long> ids) {
+    SqlUtil.Query idQuery = SqlUtil.buildSingleCollectionQuery(ID, ids);
+    String query = "SELECT * FROM " + TABLE_NAME + " WHERE " + INTRODUCER_SERVICE_ID + " IS NOT NULL AND " + idQuery.getWhere();
+    SQLiteDatabase db = databaseHelper.getSignalReadableDatabase();
+    return new IntroductionReader(db.rawQuery(query, idQuery.getWhereArgs()));
+  }
+
+  @WorkerThread
+  /**
+   * Full text search over introducee and introducer names and numbers and the date of the introductions.
+   * Every whitespace separated word of the query must prefix a word of the introduction.
+   * @return ids of the matching introductions, best match first.
+   */
+  @Override
+  public List<Long> searchIntroductions(@NonNull String query) {
+    String matchExpression = buildMatchExpression(query);
+    List<Long> ids = new ArrayList<>();
+    if (matchExpression.isEmpty()) {
+      return ids;
+    }
+    String sql = "SELECT rowid FROM " + SEARCH_TABLE_NAME + " WHERE " + SEARCH_TABLE_NAME + " MATCH ? ORDER BY rank";
+    try (Cursor c = databaseHelper.getSignalReadableDatabase().rawQuery(sql, SqlUtil.buildArgs(matchExpression))) {
+      while (c.moveToNext()) {
+        ids.add(c.getLong(0));
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Signal does not tell us about renamed recipients, the manage screen calls this when it is opened instead.
+   * Only the rows of renamed introducers are re-indexed.
+   */
+  @WorkerThread
+  @Override
+  public void refreshSearchIntroducers() {
+    databaseHelper.getSignalWritableDatabase().execSQL(REFRESH_SEARCH_INTRODUCERS);
+  }
+
+  /**
+   * Quotes every word of the user input, such that it can never be interpreted as fts syntax, and makes it a prefix query.
+   */
+  private static String buildMatchExpression(@NonNull String query){
+    StringBuilder expression = new StringBuilder();
+    for (String word : query.trim().split("\\s+")) {
+      if (word.isEmpty()) {
+        continue;
+      }
+      if (expression.length() > 0) {
+        expression.append(' ');
+      }
+      expression.append('"').append(word.replace("\"", "\"\"")).append("\"*");
+    }
+    return expression.toString();
+  }
+
  @WorkerThread
  /**
-  * PRE: introductionId may not be null, IntroducerServiceId must be null
-  * Updates the entry in the database accordingly.
+  * PRE: introductionId may not be null, IntroducerServiceId must be UNKNOWN_INTRODUCER_SERVICE_ID
+  * Only the introducer is written, the rest of the passed introduction may be outdated (e.g., it turned stale in the meantime).
   * Effectively "forget" who did this introduction.
   *
   * @return true if success, false otherwise
@@ -630,69 +1023,50 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
  public boolean clearIntroducer(TI_Data introduction){
    Preconditions.checkArgument(introduction.getIntroducerServiceId().equals(UNKNOWN_INTRODUCER_SERVICE_ID));
    Preconditions.checkArgument(introduction.getId() != null);
-   SQLiteDatabase database = databaseHelper.getSignalWritableDatabase();
-   String query = ID + " = ?";
-   String[] args = SqlUtil.buildArgs(introduction.getId());
-
-   ContentValues values = buildContentValuesForUpdate(introduction);
-
-   int update = database.update(TABLE_NAME, values, query, args);
-   Log.i(TAG, "Forgot introducer for introduction with id: " + introduction.getId());
-   if( update > 0 ){
+   String query = "UPDATE " + TABLE_NAME + " SET " + INTRODUCER_SERVICE_ID + " = ? WHERE " + ID + " = ? RETURNING " + STATE;
+   Object[] args = new Object[] { UNKNOWN_INTRODUCER_SERVICE_ID, introduction.getId() };
+   boolean updated = runTransition(introduction.getIntroduceeServiceId(), () -> {
+     SQLiteDatabase database = getSignalWritableDatabase();
+     try (Cursor c = database.rawQuery(query, args)) {
+       if (!c.moveToFirst()) {
+         return false;
+       }
+       publishChanges(database, Collections.singletonList(new Change(Change.Kind.UPDATED, introduction.getId(), State.forState(c.getInt(0)), UNKNOWN_INTRODUCER_SERVICE_ID)));
+       return true;
+     }
+   });
+   if (updated) {
+     Log.i(TAG, "Forgot introducer for introduction with id: " + introduction.getId());
      // TODO: For multidevice, syncing would be handled here
-     return true;
    }
-   return false;
+   return updated;
  }
 
   @WorkerThread
   @Override
   /**
-   * Turns all introductions for the introducee named by id stale.
-   * If this succeeds attempts to update the verification status of the introducee
+   * Turns all introductions for the introducee named by id stale and updates the verification status of the introducee.
+   * PRE: not called inside a transaction, @see runTransition
    * @param serviceId the introducee whose security nr. changed.
-   * @return true if all updates succeeded, false otherwise
+   * @return true if any introduction was turned stale, false if there were none or the introducee is unknown.
    */
   public boolean turnAllIntroductionsStale(String serviceId){
-    boolean success = turnAllIntroductionsStaleInternal(serviceId);
-    Recipient recipient =  Recipient.live(RecipientId.fromSidOrE164(serviceId)).get();
-    if(!success){
-      // This should hopefully never happen... if it does we need to investigate how to handle this inconsistent state.
-      // Maybe turn it into a job and try again?
-      throw new AssertionError("At least one introduction for: " + recipient.getDisplayName(context) + " could not be turned stale! Verification state will not be updated!");
-    }
     IdentityTableGlue tiIdentityDB = SignalDatabase.tiIdentityDatabase();
-    // Any stale state will result in the same unverified new verification state
-    tiIdentityDB.modifyIntroduceeVerification(serviceId, tiIdentityDB.getVerifiedStatus(recipient.getId()), State.STALE_PENDING, "Marked " + recipient.getDisplayName(context) + " unverified"
-                                                                                                                                 + "after successfully turning all introductions for them stale.");
-    return true;
-  }
-
-  private boolean turnAllIntroductionsStaleInternal(String serviceId){
-    boolean updateSucceeded = true;
-    Preconditions.checkArgument(!TI_Utils.getRecipientIdOrUnknown(serviceId).equals(RecipientId.UNKNOWN));
-    String query = INTRODUCEE_SERVICE_ID + " = ?";
-    String[] args = SqlUtil.buildArgs(serviceId);
-
-    SQLiteDatabase writeableDatabase = databaseHelper.getSignalWritableDatabase();
-    Cursor c = writeableDatabase.query(TABLE_NAME, TI_ALL_PROJECTION, query, args, null, null, null);
-    IntroductionReader reader = new IntroductionReader(c);
-    TI_Data introduction;
-    while((introduction = reader.getNext()) != null){
-      // If the intro is already stale, we don't need to do anything.
-      if(!introduction.getState().isStale()){
-        ContentValues cv = buildContentValuesForStale(introduction);
-        int res = writeableDatabase.update(TABLE_NAME, cv, ID + " = ?", SqlUtil.buildArgs(introduction.getId()));
-        if (res < 0){
-          Log.e(TAG, "Introduction " + introduction.getId() + " for " + introduction.getIntroduceeName() + " with state " + introduction.getState() + " could not be turned stale!");
-          updateSucceeded = false;
-        } else {
-          Log.i(TAG, "Introduction " + introduction.getId() + " for " + introduction.getIntroduceeName() + " with state " + introduction.getState() + " was turned stale!");
-          // TODO: For multidevice, syncing would be handled here
-        }
+    List<Long> staleIds = runTransition(serviceId, () -> {
+      RecipientId introduceeId = TI_Utils.getRecipientIdOrUnknown(serviceId);
+      if (introduceeId.isUnknown()) {
+        Log.w(TAG, "Introducee " + serviceId + " is unknown, no introductions were turned stale.");
+        return Collections.<Long>emptyList();
       }
-    }
-    return updateSucceeded;
+      String     name = Recipient.resolved(introduceeId).getDisplayName(context);
+      List<Long> ids  = turnStale(INTRODUCEE_SERVICE_ID + " = ?", SqlUtil.buildArgs(serviceId));
+      Log.i(TAG, "Turned " + ids.size() + " introductions for " + name + " stale.");
+      // Any stale state will result in the same unverified new verification state
+      tiIdentityDB.modifyIntroduceeVerification(serviceId, tiIdentityDB.getVerifiedStatus(introduceeId), State.STALE_PENDING, "Marked " + name + " unverified "
+                                                                                                                                + "after turning all introductions for them stale.");
+      return ids;
+    });
+    return !staleIds.isEmpty();
   }
 
   @WorkerThread
@@ -705,21 +1079,45 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
   @Override
   public boolean deleteIntroduction(long introductionId){
     Preconditions.checkArgument(introductionId > 0);
-    SQLiteDatabase database = databaseHelper.getSignalWritableDatabase();
-    String query = ID + " = ?";
-    String[] args = SqlUtil.buildArgs(introductionId);
-
-    int count = database.delete(TABLE_NAME, query, args);
+    return !deleteIntroductions(Collections.singletonList(introductionId)).isEmpty();
+  }
 
-    if(count == 1){
-      Log.i(TAG, String.format("Deleted introduction with id: %d from the database.", introductionId));
-      return true;
-    } else if(count > 1){
-      // matching with id, which must be unique
-      throw new AssertionError();
-    } else {
-      return false;
+  /**
+   * Deletes all introductions in one transition. For the verification of the introducees, deleting an accepted introduction
+   * counts as rejecting it: the remaining introductions decide whether it degrades. Deleting any other introduction changes nothing.
+   * @return the ids of the introductions that were deleted.
+   */
+  @WorkerThread
+  @Override
+  public @NonNull List<Long> deleteIntroductions(@NonNull Collection<Long> introductionIds){
+    List<Long> deletedIds = new ArrayList<>();
+    if (introductionIds.isEmpty()) {
+      return deletedIds;
     }
+    List<SqlUtil.Query> idQueries = SqlUtil.buildCollectionQuery(ID, introductionIds);
+    runTransition(getIntroducees(idQueries), () -> {
+      SQLiteDatabase          database  = getSignalWritableDatabase();
+      List<Change>            changes   = new ArrayList<>();
+      Map<String, Set<State>> newStates = new HashMap<>();
+      for (SqlUtil.Query idQuery : idQueries) {
+        String query = "DELETE FROM " + TABLE_NAME + " WHERE " + idQuery.getWhere() + " RETURNING " + ID + ", " + INTRODUCEE_SERVICE_ID + ", " + STATE;
+        try (Cursor c = database.rawQuery(query, idQuery.getWhereArgs())) {
+          while (c.moveToNext()) {
+            State deletedState = State.forState(c.getInt(2));
+            deletedIds.add(c.getLong(0));
+            changes.add(new Change(Change.Kind.DELETED, c.getLong(0), null));
+            if (!deletedState.isStale() && deletedState.isTrusted()) {
+              newStates.computeIfAbsent(c.getString(1), k -> EnumSet.noneOf(State.class)).add(deletedState.withTrust(false));
+            }
+          }
+        }
+      }
+      publishChanges(database, changes);
+      modifyIntroduceesVerification(newStates, "Deleted accepted introductions for: ");
+      return null;
+    });
+    Log.i(TAG, "Deleted " + deletedIds.size() + " introductions from the database.");
+    return deletedIds;
   }
 
   /*
@@ -763,8 +1161,13 @@ public class TI_Database extends DatabaseTable implements TI_DatabaseGlue {
       // TODO: Name changes in introducees should get reflected in database (needs to happen when the name changes, not on query)
       String introduceeName = cursor.getString(cursor.getColumnIndex(INTRODUCEE_NAME));
       String introduceeNumber = cursor.getString(cursor.getColumnIndex(INTRODUCEE_NUMBER));
-      String introduceeIdentityKey = cursor.getString(cursor.getColumnIndex(INTRODUCEE_PUBLIC_IDENTITY_KEY));
-      String           securityNr = cursor.getString(cursor.getColumnIndex(PREDICTED_FINGERPRINT));
+      String introduceeIdentityKey = Base64.encodeWithoutPadding(cursor.getBlob(cursor.getColumnIndex(INTRODUCEE_PUBLIC_IDENTITY_KEY)));
+      String securityNr;
+      try {
+        securityNr = TI_BinaryMessage.unpackFormattedFingerprint(cursor.getBlob(cursor.getColumnIndex(PREDICTED_FINGERPRINT)));
+      } catch (IOException e) {
+        throw new AssertionError(TAG + " Malformed safety number stored for introduction: " + introductionId, e);
+      }
       long timestamp = cursor.getLong(cursor.getColumnIndex(TIMESTAMP));
       return new TI_Data(introductionId, state, introducerServiceId, introduceeServiceId, introduceeName, introduceeNumber, introduceeIdentityKey, securityNr, timestamp);
     }
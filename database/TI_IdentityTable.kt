@@ -10,12 +10,15 @@ import org.signal.core.util.select
 import org.thoughtcrime.securesms.database.DatabaseTable
 import org.thoughtcrime.securesms.database.IdentityTable
 import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.TI_LOG_TAG
 import org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue
 import org.thoughtcrime.securesms.trustedIntroductions.glue.IdentityTableGlue.VerifiedStatus
+import org.thoughtcrime.securesms.trustedIntroductions.jobs.TrustedIntroductionVerifiedStatusJob
+import org.thoughtcrime.securesms.util.LRUCache
 
 
 class TI_IdentityTable internal constructor(context: Context?, databaseHelper: SignalDatabase?): DatabaseTable(context, databaseHelper), IdentityTableGlue {
@@ -33,6 +36,85 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
         $VERIFIED INTEGER DEFAULT 0
       )
     """
+    // The conversation title and verify screen ask for the status on the UI path, keep it in memory.
+    private const val CACHE_SIZE = 2000
+  }
+
+  private val cache = VerifiedStatusCache(CACHE_SIZE)
+
+  /**
+   * Bounded in-memory copy of the TI_shadow_identities table. All writes to the table go through this class and update the cache.
+   * Lookups by recipient are remembered separately so that they don't need to resolve the recipient again.
+   */
+  private class VerifiedStatusCache(maxSize: Int) {
+    private val byServiceId = LRUCache<String, VerifiedStatus>(maxSize)
+    private val serviceIdByRecipient = LRUCache<RecipientId, String>(maxSize)
+
+    @Synchronized
+    fun get(id: RecipientId): VerifiedStatus? {
+      return serviceIdByRecipient[id]?.let { byServiceId[it] }
+    }
+
+    @Synchronized
+    fun get(serviceId: String): VerifiedStatus? {
+      return byServiceId[serviceId]
+    }
+
+    @Synchronized
+    fun put(serviceId: String, status: VerifiedStatus, id: RecipientId? = null) {
+      byServiceId[serviceId] = status
+      if (id != null) {
+        serviceIdByRecipient[id] = serviceId
+      }
+    }
+
+    /**
+     * For values read from the table: a write that happened while reading wins.
+     * @return the cached value.
+     */
+    @Synchronized
+    fun putIfAbsent(serviceId: String, status: VerifiedStatus, id: RecipientId? = null): VerifiedStatus {
+      val cached = byServiceId[serviceId] ?: status.also { byServiceId[serviceId] = it }
+      if (id != null) {
+        serviceIdByRecipient[id] = serviceId
+      }
+      return cached
+    }
+
+    @Synchronized
+    fun remove(serviceId: String) {
+      byServiceId.remove(serviceId)
+    }
+
+    @Synchronized
+    fun clear() {
+      byServiceId.clear()
+      serviceIdByRecipient.clear()
+    }
+  }
+
+  /**
+   * Bulk loads the table into the cache so that the first conversation opens do not hit the disk.
+   */
+  @WorkerThread
+  override fun warmUpCache() {
+    readableDatabase
+      .select(ADDRESS, VERIFIED)
+      .from(TABLE_NAME)
+      .limit(CACHE_SIZE)
+      .run()
+      .use { cursor ->
+        while (cursor.moveToNext()) {
+          val serviceId = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS))
+          // Don't overwrite anything written in the meantime.
+          cache.putIfAbsent(serviceId, VerifiedStatus.forState(cursor.getInt(cursor.getColumnIndexOrThrow(VERIFIED))))
+        }
+      }
+    i(TAG, "Warmed up verified status cache.")
+  }
+
+  override fun clearCache() {
+    cache.clear()
   }
 
   /**
@@ -63,28 +145,38 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
   }
 
   override fun getVerifiedStatus(id: RecipientId?): VerifiedStatus {
-    val recipient = Recipient.resolved(id!!)
+    cache.get(id!!)?.let { return it }
+    val recipient = Recipient.resolved(id)
     if (recipient.hasServiceId) {
-      readableDatabase
-        .select()
-        .from(TABLE_NAME)
-        .where("${IdentityTable.ADDRESS} = ?", recipient.requireServiceId().toString())
-        .run()
-        .use { cursor ->
-          if (!cursor.moveToFirst()){
-            Log.w(TAG, "Recipient: $id, with service id: ${recipient.serviceId.get()} was not found in the table. Returned default verification status.")
-            return VerifiedStatus.DEFAULT // this recipient is not recorded in the table -> default verification state.
-          } else {
-            assert(cursor.count == 1) { "$TAG table returned more than one recipient with service ID: ${recipient.serviceId.get()}!!" }
-            return VerifiedStatus.forState(cursor.getInt(cursor.getColumnIndexOrThrow(VERIFIED)))
-          }
-        }
+      val serviceId = recipient.requireServiceId().toString()
+      // Read without holding the cache lock, cached lookups must not wait for the disk.
+      cache.get(serviceId)?.let { return cache.putIfAbsent(serviceId, it, id) }
+      val status = readVerifiedStatus(serviceId)
+      // Inside a transaction the read may see an uncommitted write, @see putAfterCommit
+      return if (writableDatabase.inTransaction()) status else cache.putIfAbsent(serviceId, status, id)
     } else {
       Log.w(TAG, "Recipient with recipient ID: $id, did not have an associated service id. Returned default verification status.")
       return VerifiedStatus.DEFAULT
     }
   }
 
+  private fun readVerifiedStatus(serviceId: String): VerifiedStatus {
+    readableDatabase
+      .select()
+      .from(TABLE_NAME)
+      .where("${IdentityTable.ADDRESS} = ?", serviceId)
+      .run()
+      .use { cursor ->
+        if (!cursor.moveToFirst()){
+          Log.w(TAG, "Recipient with service id: $serviceId was not found in the table. Returned default verification status.")
+          return VerifiedStatus.DEFAULT // this recipient is not recorded in the table -> default verification state.
+        } else {
+          assert(cursor.count == 1) { "$TAG table returned more than one recipient with service ID: $serviceId!!" }
+          return VerifiedStatus.forState(cursor.getInt(cursor.getColumnIndexOrThrow(VERIFIED)))
+        }
+      }
+  }
+
 
   override fun saveIdentity(addressName: String, verifiedStatus: VerifiedStatus): Boolean {
     val contentValues = contentValuesOf(
@@ -103,6 +195,7 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
     } else {
       Log.i(TAG, "Successfully added recipient with service id:$addressName and status: $verifiedStatus")
     }
+    putAfterCommit(addressName, verifiedStatus)
     return true
   }
 
@@ -118,12 +211,23 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
       } else {
         Log.i(TAG, "Successfully inserted recipient $id with service id:$serviceID and status: $newStatus")
       }
+    putAfterCommit(serviceID, newStatus, id)
     return true
   }
 
+  /**
+   * Inside a transaction (e.g., a transition of the introduction FSM) the status must not be visible in the cache before it is committed.
+   * Until then the entry is dropped, such that reads go to the table and see the uncommitted write on this connection only.
+   */
+  private fun putAfterCommit(serviceId: String, status: VerifiedStatus, id: RecipientId? = null) {
+    cache.remove(serviceId)
+    writableDatabase.runPostSuccessfulTransaction { cache.put(serviceId, status, id) }
+  }
+
   /**
    * Parts of FSM that react to changing introductions implemented here.
    * PRE: introducee exists in recipient and identity table
+   * PRE: runs inside a state transition of the introducee, @see TI_Database.runTransition
    * @param introduceeServiceId The service ID of the recipient whose verification status may change
    * @param previousIntroduceeVerification the previous verification status of the introducee.
    * @param newIntroductionState the new state of the introduction that changed. PRE: May not be PENDING
@@ -131,7 +235,39 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
    */
   @WorkerThread
   override fun modifyIntroduceeVerification(introduceeServiceId: String, previousIntroduceeVerification: VerifiedStatus, newIntroductionState: TI_Database.State, logmessage: String) {
-    val newIntroduceeVerification = when (newIntroductionState) {
+    modifyIntroduceeVerification(introduceeServiceId, previousIntroduceeVerification, listOf(newIntroductionState), logmessage)
+  }
+
+  /**
+   * Same as above for several introductions of the introducee that changed in one transition, @see TI_Database.acceptIntroductions
+   * The verification is computed once from the introductions as they are after all changes, and written once.
+   * Conflicting states are applied first: a compromise wins over an acceptance, and rejected conflicts are resolved before plain rejections degrade the status further.
+   * @param newIntroductionStates the distinct states the changed introductions ended up in. PRE: none may be PENDING
+   */
+  @WorkerThread
+  override fun modifyIntroduceeVerification(introduceeServiceId: String, previousIntroduceeVerification: VerifiedStatus, newIntroductionStates: Collection<TI_Database.State>, logmessage: String) {
+    // Read from the introducee summary at most once, and only by the transitions that depend on the other introductions of this introducee.
+    val stateCounts by lazy { SignalDatabase.tiDatabase.getIntroductionStateCounts(introduceeServiceId) }
+    val newIntroduceeVerification = newIntroductionStates
+      .sortedByDescending { it.toInt() }
+      .fold(previousIntroduceeVerification) { verification, state -> nextVerification(verification, state) { stateCounts } }
+    // Finally update the verification state and log
+    val rid = RecipientId.fromSidOrE164(introduceeServiceId)
+    // The shadow table is authoritative and written inside the transition, the next transition of this introducee decides based on it.
+    // The vanilla identity store, other devices and storage service follow in a job.
+    setVerifiedStatus(rid, newIntroduceeVerification)
+    // Nothing leaves the transaction unless it is committed. The job looks up the identity key when it runs, a missing one must not roll back the transition.
+    writableDatabase.runPostSuccessfulTransaction { AppDependencies.jobManager.add(TrustedIntroductionVerifiedStatusJob(rid)) }
+    i(TAG, logmessage)
+  }
+
+  /**
+   * The introducee verification FSM.
+   * @param stateCounts the introductions of the introducee by state, only read where the other introductions matter.
+   */
+  private fun nextVerification(previousIntroduceeVerification: VerifiedStatus, newIntroductionState: TI_Database.State, stateCounts: () -> Map<TI_Database.State, Int>): VerifiedStatus {
+    fun atLeastOneIntroductionIs(state: TI_Database.State): Boolean = (stateCounts()[state] ?: 0) > 0
+    return when (newIntroductionState) {
         TI_Database.State.PENDING -> throw AssertionError("$TAG Precondition violation! newState may not be PENDING")
         // Any stale state leads to unverified
         TI_Database.State.STALE_PENDING, TI_Database.State.STALE_ACCEPTED, TI_Database.State.STALE_REJECTED, TI_Database.State.STALE_ACCEPTED_CONFLICTING,
@@ -151,11 +287,11 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
             VerifiedStatus.DIRECTLY_VERIFIED, VerifiedStatus.MANUALLY_VERIFIED, VerifiedStatus.DEFAULT, VerifiedStatus.UNVERIFIED -> previousIntroduceeVerification
             // Potentially degrading in status
             VerifiedStatus.DUPLEX_VERIFIED -> {
-              if(SignalDatabase.tiDatabase.atLeastOneIntroductionIs(TI_Database.State.ACCEPTED, introduceeServiceId)) VerifiedStatus.DUPLEX_VERIFIED
+              if(atLeastOneIntroductionIs(TI_Database.State.ACCEPTED)) VerifiedStatus.DUPLEX_VERIFIED
               else VerifiedStatus.DIRECTLY_VERIFIED
             }
             VerifiedStatus.INTRODUCED -> {
-              if(SignalDatabase.tiDatabase.atLeastOneIntroductionIs(TI_Database.State.ACCEPTED, introduceeServiceId)) VerifiedStatus.INTRODUCED
+              if(atLeastOneIntroductionIs(TI_Database.State.ACCEPTED)) VerifiedStatus.INTRODUCED
               else VerifiedStatus.UNVERIFIED
             }
             // Or staying in the suspected compromised state
@@ -166,9 +302,9 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
         // A rejected conflicting introduction might move the introducee out of the conflicting state or keep the state the same
         TI_Database.State.REJECTED_CONFLICTING -> when (previousIntroduceeVerification) {
             VerifiedStatus.SUSPECTED_COMPROMISE -> {
-              if(SignalDatabase.tiDatabase.atLeastOneIntroductionIs(TI_Database.State.ACCEPTED_CONFLICTING, introduceeServiceId)) VerifiedStatus.SUSPECTED_COMPROMISE
+              if(atLeastOneIntroductionIs(TI_Database.State.ACCEPTED_CONFLICTING)) VerifiedStatus.SUSPECTED_COMPROMISE
               else {
-                if (SignalDatabase.tiDatabase.atLeastOneIntroductionIs(TI_Database.State.ACCEPTED, introduceeServiceId)) VerifiedStatus.INTRODUCED
+                if (atLeastOneIntroductionIs(TI_Database.State.ACCEPTED)) VerifiedStatus.INTRODUCED
                 else VerifiedStatus.UNVERIFIED
               }
             }
@@ -177,9 +313,5 @@ class TI_IdentityTable internal constructor(context: Context?, databaseHelper: S
           }
         TI_Database.State.PENDING_CONFLICTING -> previousIntroduceeVerification
       }
-    // Finally update the verification state and log
-    val rid = RecipientId.fromSidOrE164(introduceeServiceId)
-    TI_Utils.updateContactsVerifiedStatus(rid, TI_Utils.getIdentityKey(rid) , newIntroduceeVerification)
-    i(TAG, logmessage)
   }
 }
\ No newline at end of file
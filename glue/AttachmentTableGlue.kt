@@ -5,43 +5,168 @@
 
 package org.thoughtcrime.securesms.trustedIntroductions.glue
 
-import androidx.annotation.NonNull
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.attachments.Attachment
+import org.thoughtcrime.securesms.dependencies.AppDependencies
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils
-import java.io.ByteArrayOutputStream
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FilterInputStream
+import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
 
 object AttachmentTableGlue {
 
+  private val TAG = String.format(TI_Utils.TI_LOG_TAG, Log.tag(AttachmentTableGlue::class.java))
+
+  private const val BUFFER_SIZE = 8 * 1024
 
   /**
    * Given a message attachment, checks if it might be trusted introduction data (by checking file extension)
-   * and if yes attempts to read the data and pass it to the handler.
-   * Finally we return an inputstream since we don't want to disturb the control flow of the caller 
-   * (and any given inputstream can only be read once).
+   * and if yes copies the data to a private spool file while the caller reads it. Once the caller reached the end,
+   * the spool file is parsed in the background and passed to the handler.
+   * We return an inputstream since we don't want to disturb the control flow of the caller
+   * (and any given inputstream can only be read once). The attachment is never copied in memory, and the caller never waits for the parser.
    *
    * @param attachment the attachment to be evaluated
-   * @return a ByteinputStream containing the contents of the attachment
+   * @return an inputstream with the contents of the attachment
    */
   @JvmStatic
   fun grabIntroductionData(attachment: Attachment, inputStream: InputStream): InputStream {
-    var text = ""
-    if(attachment.fileName!!.contains(TI_Utils.TI_MESSAGE_EXTENSION)){
-      val byteOutputStream = ByteArrayOutputStream()
-      inputStream.use {
-        byteOutputStream.use { output ->
-          inputStream.copyTo(output)
+    if (!attachment.fileName!!.contains(TI_Utils.TI_MESSAGE_EXTENSION)) return inputStream
+    val spool = try {
+      File.createTempFile("trusted_introduction", null, AppDependencies.application.cacheDir)
+    } catch (e: IOException) {
+      Log.w(TAG, "Could not create spool file, the introduction is not parsed.", e)
+      return inputStream
+    }
+    val timestamp = attachment.uploadTimestamp
+    return SpoolingInputStream(inputStream, spool) {
+      SignalExecutors.BOUNDED.execute {
+        try {
+          spool.inputStream().use { TI_Utils.handleTIMessage(it, timestamp) }
+        } catch (e: IOException) {
+          Log.e(TAG, "Could not read spooled introduction.", e)
+        } finally {
+          spool.delete()
         }
       }
-      text = byteOutputStream.toString()
-      handleTIMessage(text, attachment.uploadTimestamp)
     }
-    return if (text.isBlank()) inputStream else text.byteInputStream()
   }
 
-  fun handleTIMessage(message: String, timestamp: Long) {
-    if (!message.contains(TI_Utils.TI_IDENTIFYER)) return
-    TI_Utils.handleTIMessage(message, timestamp)
-  }
+  /**
+   * Copies every byte read from source into the spool file, bytes read again after a reset are copied only once.
+   * Calls onComplete once source is exhausted, at the latest when the reader closes. If source or the spool file fail, the spool file is deleted,
+   * an incomplete message is not parsed. The reader is unaffected by spool failures.
+   * Supports mark/reset like the ByteArrayInputStream handed out before.
+   */
+  private class SpoolingInputStream(source: InputStream, private val spool: File, private val onComplete: () -> Unit) :
+    FilterInputStream(if (source.markSupported()) source else BufferedInputStream(source)) {
+
+    private var sink: OutputStream? = try {
+      spool.outputStream().buffered()
+    } catch (e: IOException) {
+      Log.w(TAG, "Could not open spool file, the introduction is not parsed.", e)
+      spool.delete()
+      null
+    }
+    private var position = 0L
+    private var markPosition = 0L
+    private var spooled = 0L
+
+    override fun read(): Int {
+      val b = super.read()
+      if (b < 0) {
+        complete()
+      } else {
+        if (position == spooled) toSpool { it.write(b) }
+        position++
+        spooled = maxOf(spooled, position)
+      }
+      return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val n = super.read(b, off, len)
+      if (n < 0) {
+        complete()
+      } else {
+        val end = position + n
+        if (end > spooled) {
+          val skip = (spooled - position).toInt()
+          toSpool { it.write(b, off + skip, n - skip) }
+        }
+        position = end
+        spooled = maxOf(spooled, position)
+      }
+      return n
+    }
+
+    override fun skip(n: Long): Long {
+      // Skipped bytes would never reach the spool file.
+      val buffer = ByteArray(minOf(n, BUFFER_SIZE.toLong()).toInt())
+      val read = read(buffer, 0, buffer.size)
+      return if (read < 0) 0 else read.toLong()
+    }
 
+    @Synchronized
+    override fun mark(readlimit: Int) {
+      super.mark(readlimit)
+      markPosition = position
+    }
+
+    @Synchronized
+    override fun reset() {
+      super.reset()
+      position = markPosition
+    }
+
+    override fun close() {
+      // Readers that know the length stop before seeing the end. The rest of the (small) attachment is spooled such that it is parsed nevertheless.
+      try {
+        val buffer = ByteArray(BUFFER_SIZE)
+        while (sink != null && read(buffer, 0, buffer.size) >= 0) {}
+      } catch (e: IOException) {
+        Log.w(TAG, "Introduction closed before its end, it is not parsed.", e)
+        abort()
+      }
+      super.close()
+    }
+
+    private inline fun toSpool(write: (OutputStream) -> Unit) {
+      val out = sink ?: return
+      try {
+        write(out)
+      } catch (e: IOException) {
+        Log.w(TAG, "Could not write spool file, the introduction is not parsed.", e)
+        abort()
+      }
+    }
+
+    private fun complete() {
+      val out = sink ?: return
+      sink = null
+      try {
+        out.close()
+      } catch (e: IOException) {
+        Log.w(TAG, "Could not write spool file, the introduction is not parsed.", e)
+        spool.delete()
+        return
+      }
+      onComplete()
+    }
+
+    private fun abort() {
+      val out = sink ?: return
+      sink = null
+      try {
+        out.close()
+      } catch (e: IOException) {
+        // Deleted anyway.
+      }
+      spool.delete()
+    }
+  }
 }
@@ -7,12 +7,15 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.thoughtcrime.securesms.database.IdentityTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_IdentityTable;
 
+import java.util.Collection;
+
 public interface IdentityTableGlue {
   String TI_ADDRESS_PROJECTION    = IdentityTable.ADDRESS;
   String VERIFIED = IdentityTable.VERIFIED;
@@ -23,8 +26,22 @@ public interface IdentityTableGlue {
     return TI_IdentityTable.CREATE_TABLE;
   }
 
+  /**
+   * Called once on application startup, also loads the verification states into memory in the background.
+   */
   static IdentityTableGlue createSingleton(Context c, SignalDatabase databaseHelper){
-    return new TI_IdentityTable(c, databaseHelper);
+    IdentityTableGlue table = new TI_IdentityTable(c, databaseHelper);
+    SignalExecutors.BOUNDED.execute(table::warmUpCache);
+    return table;
+  }
+
+  /**
+   * To be called after a backup was restored or imported, the shadow identities were replaced behind the cache's back.
+   */
+  static void onBackupRestored(){
+    IdentityTableGlue table = SignalDatabase.tiIdentityDatabase();
+    table.clearCache();
+    SignalExecutors.BOUNDED.execute(table::warmUpCache);
   }
 
 
@@ -58,6 +75,17 @@ public interface IdentityTableGlue {
   @WorkerThread
   boolean setVerifiedStatus(@NonNull RecipientId id, VerifiedStatus newStatus);
 
+  /**
+   * Loads the stored verification states into the in-memory cache.
+   */
+  @WorkerThread
+  void warmUpCache();
+
+  /**
+   * Drops the in-memory cache, needed if the table was written to behind this class' back (e.g., restoring a backup).
+   */
+  void clearCache();
+
   enum VerifiedStatus{
     DEFAULT, MANUALLY_VERIFIED, UNVERIFIED, DIRECTLY_VERIFIED, INTRODUCED, DUPLEX_VERIFIED, SUSPECTED_COMPROMISE;
 
@@ -234,4 +262,10 @@ public interface IdentityTableGlue {
    * @param logmessage What to print to logcat if the verification state was modified.
    */
   void modifyIntroduceeVerification(String introduceeServiceId, TI_IdentityTable.VerifiedStatus previousIntroduceeVerification, TI_Database.State newState, String logmessage);
+
+  /**
+   * Same as above, applied once for all introductions of the introducee that were changed together.
+   * @param newStates the distinct states the changed introductions ended up in.
+   */
+  void modifyIntroduceeVerification(String introduceeServiceId, TI_IdentityTable.VerifiedStatus previousIntroduceeVerification, Collection<TI_Database.State> newStates, String logmessage);
 }
@@ -7,7 +7,10 @@ package org.thoughtcrime.securesms.trustedIntroductions.glue
 
 import android.annotation.SuppressLint
 import android.database.Cursor
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.select
 import org.signal.glide.Log.i
+import org.signal.glide.Log.w
 import org.thoughtcrime.securesms.audio.TAG
 import org.thoughtcrime.securesms.database.IdentityTable
 import org.thoughtcrime.securesms.database.RecipientTable
@@ -68,7 +71,7 @@ object RecipientTableGlue {
     @JvmStatic
     @SuppressLint("Range")
     private fun getRecipientIdsFromACIs(cursor: Cursor? = null, acis: Collection<String>? = null): Map<RecipientId, RecipientRecord>{
-      val serviceIdentifyers = arrayListOf<String>()
+      val serviceIdentifyers = linkedSetOf<String>()
       val recipientIds: MutableSet<RecipientId> = hashSetOf()
       if (cursor == null && acis == null){
         throw IllegalArgumentException("Either cursor or acis must not be null!")
@@ -76,23 +79,43 @@ object RecipientTableGlue {
         if(cursor.moveToFirst()){
           cursor.use {
             while (!it.isAfterLast) {
-              serviceIdentifyers.add(it.getString(it.getColumnIndex(IdentityTable.ADDRESS)))
+              normalize(it.getString(it.getColumnIndex(IdentityTable.ADDRESS)))?.let(serviceIdentifyers::add)
               it.moveToNext()
             }
           }
         }
       } else {
-        serviceIdentifyers.addAll(acis!!)
+        acis!!.mapNotNullTo(serviceIdentifyers, ::normalize)
       }
-      serviceIdentifyers.forEach { aci ->
-        try {
-          val rid: RecipientId = SignalDatabase.recipients.getByAci(ServiceId.ACI.parseOrThrow(aci)).get()
-          recipientIds.add(rid)
-        } catch (e: NoSuchElementException) {
-          // Just don't add a recipient that doesn't exist already
-          i(TAG, "Recipient with service ID $aci was not present in the database.")
-        }
+      // One query per chunk of SqlUtil.MAX_QUERY_ARGS service ids instead of one per service id.
+      SqlUtil.buildCollectionQuery(SERVICE_ID, serviceIdentifyers).forEach { query ->
+        SignalDatabase.rawDatabase
+          .select(ID)
+          .from(RecipientTable.TABLE_NAME)
+          .where(query.where, query.whereArgs)
+          .run()
+          .use { idCursor ->
+            while (idCursor.moveToNext()) {
+              recipientIds.add(RecipientId.from(idCursor.getLong(0)))
+            }
+          }
+      }
+      if (recipientIds.size < serviceIdentifyers.size) {
+        // Just don't add recipients that don't exist already
+        i(TAG, "${serviceIdentifyers.size - recipientIds.size} of ${serviceIdentifyers.size} service IDs were not present in the database.")
       }
       return SignalDatabase.recipients.getRecords(recipientIds)
     }
+
+    /**
+     * Service ids are matched as stored in the recipient table, which is how ServiceId serializes them (no ACI: prefix, lower case).
+     * @return null, and a log entry, if serviceId does not parse.
+     */
+    private fun normalize(serviceId: String?): String? {
+      val parsed = ServiceId.parseOrNull(serviceId)
+      if (parsed == null) {
+        w(TAG, "Ignoring malformed service ID: $serviceId")
+      }
+      return parsed?.toString()
+    }
 }
@@ -15,15 +15,17 @@ public interface SignalBaseIdentityKeyStoreGlue {
     // Security nr. changed, change all introductions for this introducee to stale
     SignalExecutors.BOUNDED.execute(() -> {
       Recipient recipient = Recipient.resolved(recipientId);
+      TI_Utils.invalidateFingerprintCache(recipient.requireServiceId().toString());
       boolean   res       = SignalDatabase.tiDatabase().turnAllIntroductionsStale(recipient.requireServiceId().toString());
       if (!res) {
-        Log.e(TAG, "Error occured while turning all introductions stale for recipient: " + recipientId);
+        Log.i(TAG, "No introductions turned stale for recipient: " + recipientId);
       }
     });
   }
 
   static void handleDanglingIntroductions(String serviceID, String encodedIdentityKey) {
     SignalExecutors.BOUNDED.execute(() -> {
+      TI_Utils.invalidateFingerprintCache(serviceID);
       SignalDatabase.tiDatabase().handleDanglingIntroductions(serviceID, encodedIdentityKey);
     });
   }
@@ -13,11 +13,64 @@ import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Data;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Methods that change the state or the introducer of introductions (accept, reject, delete, clearIntroducer, turnAllIntroductionsStale,
+ * handleDanglingIntroductions) are state transitions: they must be called on a worker thread and never inside a database transaction,
+ * they throw an AssertionError otherwise. @see TI_Database.runTransition
+ */
 public interface TI_DatabaseGlue {
   static void executeCreateTable(net.zetetic.database.sqlcipher.SQLiteDatabase db){
     db.execSQL(TI_Database.CREATE_TABLE);
+    executeCreateIndexes(db);
+    executeCreateSummary(db);
+    executeCreateSearch(db);
+  }
+  static void executeCreateIndexes(net.zetetic.database.sqlcipher.SQLiteDatabase db){
+    for (String index : TI_Database.CREATE_INDEXES) {
+      db.execSQL(index);
+    }
+  }
+  static void executeCreateSummary(net.zetetic.database.sqlcipher.SQLiteDatabase db){
+    db.execSQL(TI_Database.CREATE_SUMMARY_TABLE);
+    for (String trigger : TI_Database.CREATE_SUMMARY_TRIGGERS) {
+      db.execSQL(trigger);
+    }
+  }
+  static void executeRebuildSummary(net.zetetic.database.sqlcipher.SQLiteDatabase db){
+    for (String statement : TI_Database.REBUILD_SUMMARY) {
+      db.execSQL(statement);
+    }
+  }
+  static void executeCreateSearch(net.zetetic.database.sqlcipher.SQLiteDatabase db){
+    db.execSQL(TI_Database.CREATE_SEARCH_TABLE);
+    for (String trigger : TI_Database.CREATE_SEARCH_TRIGGERS) {
+      db.execSQL(trigger);
+    }
+  }
+  static void executeRebuildSearch(net.zetetic.database.sqlcipher.SQLiteDatabase db){
+    for (String statement : TI_Database.REBUILD_SEARCH) {
+      db.execSQL(statement);
+    }
+  }
+  /**
+   * To be called after a backup was restored or imported. The summary and the search index are not part of backups, @see SqlUtils.getAllTablesTI
+   * They are created again with their triggers and recomputed from the restored introductions.
+   */
+  static void onBackupRestored(net.zetetic.database.sqlcipher.SQLiteDatabase db){
+    db.beginTransaction();
+    try {
+      executeCreateSummary(db);
+      executeRebuildSummary(db);
+      executeCreateSearch(db);
+      executeRebuildSearch(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
   }
   static TI_DatabaseGlue getTIDatabase(@Nullable SignalDatabase db){
     if (db == null){ // check for nullpointer to equal rest of Kotlin code in Signals Identity table
@@ -36,7 +89,6 @@ public interface TI_DatabaseGlue {
 
   Map<RecipientId, RecipientRecord> fetchRecipientRecord(RecipientId introduceeId);
 
-  ContentValues buildContentValuesForStateUpdate(TI_Data introduction, TI_Database.State newState);
   SQLiteDatabase getSignalWritableDatabase();
 
   ContentValues buildContentValuesForInsert(TI_Database.State state, String introducerServiceId, String introduceeServiceId, String introduceeName, String introduceeNumber, String introduceeIdentityKey, String predictedSecurityNumber, long timestamp);
@@ -45,17 +97,39 @@ public interface TI_DatabaseGlue {
 
   long incomingIntroduction(TI_Data introduction);
 
+  List<Long> incomingIntroductions(List<TI_Data> introductions);
+
   boolean deleteIntroduction(long introductionId);
 
+  List<Long> deleteIntroductions(@NotNull Collection<Long> introductionIds);
+
   boolean clearIntroducer(TI_Data introduction);
 
   TI_Database.IntroductionReader getAllDisplayableIntroductions();
 
+  TI_Database.IntroductionReader getDisplayableIntroductionsPage(long afterTimestamp, long afterId, int limit);
+
+  TI_Database.IntroductionReader getDisplayableIntroductions(@NotNull Collection<Long> ids);
+
+  List<Long> searchIntroductions(@NotNull String query);
+
+  void refreshSearchIntroducers();
+
   boolean acceptIntroduction(TI_Data introduction);
 
   boolean rejectIntroduction(TI_Data introduction);
 
+  List<Long> acceptIntroductions(@NotNull Collection<Long> introductionIds);
+
+  List<Long> rejectIntroductions(@NotNull Collection<Long> introductionIds);
+
   boolean atLeastOneIntroductionIs(TI_Database.State state, @NotNull String introduceeServiceId);
 
-  void handleDanglingIntroductions(String serviceId, String encodedIdentityKey);
+  Map<TI_Database.State, Integer> getIntroductionStateCounts(@NotNull String introduceeServiceId);
+
+  List<Long> handleDanglingIntroductions(String serviceId, String encodedIdentityKey);
+
+  void addChangeListener(@NotNull TI_Database.ChangeListener listener);
+
+  void removeChangeListener(@NotNull TI_Database.ChangeListener listener);
 }
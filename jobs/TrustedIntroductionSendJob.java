@@ -6,6 +6,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.FileProvider;
 
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentCreator;
@@ -35,6 +36,9 @@ import org.thoughtcrime.securesms.util.StorageUtil;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -44,6 +48,8 @@ import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 
@@ -54,6 +60,8 @@ public class TrustedIntroductionSendJob extends BaseJob {
   // Factory Key
   public static final String KEY = "TISendJob";
 
+  private static final int PIPE_BUFFER_SIZE = 16 * 1024;
+
   private final RecipientId introducerRecipientId;
   private final RecipientId introductionRecipientId;
   private final Set<RecipientId>  introduceeIds;
@@ -126,6 +134,45 @@ public class TrustedIntroductionSendJob extends BaseJob {
     Log.e(TAG, String.format(Locale.ENGLISH,"Failed to introduce %d contacts to %s", introduceeIds.size(), introductionRecipientId.toString()));
   }
 
+  private static String getMimeType(){
+    return TI_Utils.TI_SEND_BINARY ? TI_Utils.TI_BINARY_MIME_TYPE : TI_Utils.TI_MIME_TYPE;
+  }
+
+  /**
+   * Streams the message body straight into an on disk blob while it is being built, so neither the body nor its bytes are held in memory.
+   * @return the uri of the blob.
+   */
+  private Uri writeBodyToBlob() throws Exception {
+    PipedInputStream  blobInput = new PipedInputStream(PIPE_BUFFER_SIZE);
+    PipedOutputStream bodyOutput = new PipedOutputStream(blobInput);
+    Future<Void> writer = SignalExecutors.UNBOUNDED.submit(() -> {
+      try (OutputStream out = bodyOutput) {
+        if (TI_Utils.TI_SEND_BINARY) {
+          TI_Utils.writeBinaryMessageBody(introducerRecipientId, introductionRecipientId, introduceeIds, out);
+        } else {
+          TI_Utils.writeMessageBody(introducerRecipientId, introductionRecipientId, introduceeIds, out, true);
+        }
+      }
+      return null;
+    });
+    Uri uri;
+    try {
+      // Size is unknown upfront, the attachment is created with size 0 regardless.
+      uri = BlobProvider.getInstance().forData(blobInput, 0).withMimeType(getMimeType()).withFileName(TI_Utils.TI_MESSAGE_FILENAME).createForSingleSessionOnDisk(context);
+    } finally {
+      // Unblocks the writer if the blob could not be created.
+      blobInput.close();
+    }
+    try {
+      writer.get();
+    } catch (ExecutionException e) {
+      BlobProvider.getInstance().delete(context, uri);
+      Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : e;
+    }
+    return uri;
+  }
+
   /**
    * Builds a Trusted Introduction with the data passed through the constructor of the job.
    * If it succeeds to build the body (would, e.g., fail if invalid Recipient IDs were passed for any entity),
@@ -133,12 +180,11 @@ public class TrustedIntroductionSendJob extends BaseJob {
    *
    */
   @Override protected void onRun() throws Exception {
-    String body = TI_Utils.buildMessageBody(introducerRecipientId, introductionRecipientId, introduceeIds);
     LiveRecipient liveIntroductionRecipient = Recipient.live(introductionRecipientId);
     Recipient introductionRecipient = liveIntroductionRecipient.resolve();
-    Uri uri = BlobProvider.getInstance().forData(body.getBytes(StandardCharsets.UTF_8)).withMimeType(TI_Utils.TI_MIME_TYPE).withFileName(TI_Utils.TI_MESSAGE_FILENAME).createForSingleUseInMemory();
+    Uri uri = writeBodyToBlob();
     Attachment a = new UriAttachment(uri,
-                                     TI_Utils.TI_MIME_TYPE,
+                                     getMimeType(),
                                      AttachmentTable.TRANSFER_PROGRESS_PENDING,
                                      0,
                                      0,
@@ -0,0 +1,128 @@
+package org.thoughtcrime.securesms.trustedIntroductions.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.signal.libsignal.protocol.IdentityKey;
+import org.thoughtcrime.securesms.crypto.ReentrantSessionLock;
+import org.thoughtcrime.securesms.database.IdentityTable;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.dependencies.AppDependencies;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JsonJobData;
+import org.thoughtcrime.securesms.jobs.BaseJob;
+import org.thoughtcrime.securesms.jobs.MultiDeviceVerifiedUpdateJob;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.storage.StorageSyncHelper;
+import org.thoughtcrime.securesms.trustedIntroductions.MissingIdentityException;
+import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils;
+import org.thoughtcrime.securesms.trustedIntroductions.database.TI_IdentityTable;
+import org.thoughtcrime.securesms.util.IdentityUtil;
+import org.whispersystems.signalservice.api.SignalSessionLock;
+
+import java.util.Objects;
+
+import static org.webrtc.ContextUtils.getApplicationContext;
+
+/**
+ * Mirrors the TI verification status of a recipient into the vanilla identity store, other devices and storage service.
+ * TI_shadow_identities is authoritative and written before this job is enqueued, the job reads the status and the current identity key when it runs.
+ * A key change turns the introductions stale and enqueues another job, nothing decided for a previous key is persisted with the job.
+ * Accepting many introductions or turning them stale after a key change updates the same recipient over and over:
+ * at most one job per recipient waits in its queue, further updates are covered by it.
+ */
+public class TrustedIntroductionVerifiedStatusJob extends BaseJob {
+
+  private static final String TAG = String.format(TI_Utils.TI_LOG_TAG, Log.tag(TrustedIntroductionVerifiedStatusJob.class));
+
+  // Factory Key
+  public static final String KEY = "TIVerifiedStatusJob";
+
+  // Serialization Keys
+  private static final String KEY_RECIPIENT_ID = "recipient_id";
+
+  private final RecipientId recipientId;
+
+  public TrustedIntroductionVerifiedStatusJob(@NonNull RecipientId recipientId){
+    this(recipientId,
+         new Parameters.Builder()
+                       .setQueue(KEY + "_" + recipientId.toQueueKey())
+                       // One running, one waiting.
+                       .setMaxInstancesForQueue(2)
+                       .setLifespan(TI_Utils.TI_JOB_LIFESPAN)
+                       .setMaxAttempts(TI_Utils.TI_JOB_MAX_ATTEMPTS)
+                       .build());
+  }
+
+  private TrustedIntroductionVerifiedStatusJob(@NonNull RecipientId recipientId, @NonNull Parameters parameters){
+    super(parameters);
+    this.recipientId = recipientId;
+  }
+
+  @NonNull @Override public byte[] serialize() {
+    return Objects.requireNonNull(new JsonJobData.Builder()
+                                      .putString(KEY_RECIPIENT_ID, recipientId.serialize())
+                                      .build().serialize());
+  }
+
+  @NonNull @Override public String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override public void onFailure() {
+    Log.e(TAG, "Failed to sync the verification status of " + recipientId);
+  }
+
+  @Override protected void onRun() throws Exception {
+    Recipient recipient = Recipient.resolved(recipientId);
+    TI_IdentityTable.VerifiedStatus status;
+    IdentityKey identityKey;
+    try (SignalSessionLock.Lock unused = ReentrantSessionLock.INSTANCE.acquire()) {
+      // Status and key are read together under the session lock, a key change in between commit and now is synced as it is now.
+      try {
+        identityKey = TI_Utils.getIdentityKey(recipientId);
+      } catch (MissingIdentityException e) {
+        Log.w(TAG, "No identity for " + recipientId + ", not syncing the verification status.", e);
+        return;
+      }
+      status = SignalDatabase.tiIdentityDatabase().getVerifiedStatus(recipientId);
+      if (TI_IdentityTable.VerifiedStatus.isVerified(status)) {
+        AppDependencies.getProtocolStore().aci().identities()
+                       .saveIdentityWithoutSideEffects(recipientId,
+                                                       recipient.requireServiceId(),
+                                                       identityKey,
+                                                       TI_IdentityTable.VerifiedStatus.toVanilla(status),
+                                                       false,
+                                                       System.currentTimeMillis(),
+                                                       true);
+      } else {
+        AppDependencies.getProtocolStore().aci().identities().setVerified(recipientId, identityKey, TI_IdentityTable.VerifiedStatus.toVanilla(status));
+      }
+    }
+    Log.i(TAG, "Synced verification status " + status + " of " + recipientId);
+    // For other devices but the Android phone, we map the finer statusses to verified or unverified.
+    // TODO: Change once we add new devices for TI
+    AppDependencies.getJobManager()
+                   .add(new MultiDeviceVerifiedUpdateJob(recipientId,
+                                                         identityKey,
+                                                         IdentityTable.VerifiedStatus.forState(TI_IdentityTable.VerifiedStatus.toVanilla(status.toInt()))));
+    IdentityUtil.markIdentityVerified(getApplicationContext(), recipient, TI_IdentityTable.VerifiedStatus.isVerified(status), false);
+    // Coalesced by StorageSyncJob
+    StorageSyncHelper.scheduleSyncForDataChange();
+  }
+
+  @Override protected boolean onShouldRetry(@NonNull Exception e) {
+    return false;
+  }
+
+  public static final class Factory implements Job.Factory<TrustedIntroductionVerifiedStatusJob> {
+
+    @NonNull @Override public TrustedIntroductionVerifiedStatusJob create(@NonNull Parameters parameters, @Nullable byte[] serializedData) {
+      JsonJobData data = JsonJobData.deserialize(serializedData);
+      // Jobs enqueued by earlier versions also carry an identity key, it is ignored.
+      return new TrustedIntroductionVerifiedStatusJob(RecipientId.from(data.getString(KEY_RECIPIENT_ID)), parameters);
+    }
+  }
+}
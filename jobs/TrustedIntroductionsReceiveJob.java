@@ -49,14 +49,17 @@ public class TrustedIntroductionsReceiveJob extends BaseJob {
   private static final String KEY_BODY_PARSED = "bodyParsed";
   private static final String KEY_INTRODUCTIONS = "serialized_remaining_introduction_data";
 
-  public TrustedIntroductionsReceiveJob(@NonNull String messageBody, @NonNull long timestamp){
-    this(null,
-         messageBody,
-         false,
+  /**
+   * For introductions that were already parsed while the attachment was being read, @see TI_Utils.handleTIMessage
+   */
+  public TrustedIntroductionsReceiveJob(@NonNull RecipientId introducerId, @NonNull List<TI_Data> introductions, long timestamp){
+    this(introducerId,
+         "",
+         true,
          timestamp,
-         null,
+         new ArrayList<>(introductions),
          new Parameters.Builder()
-                       .setQueue(TI_Utils.serializeForQueue(messageBody) + timestamp)
+                       .setQueue(TI_Utils.serializeForQueue(introducerId.serialize()) + timestamp)
                        .setLifespan(TI_Utils.TI_JOB_LIFESPAN)
                        .setMaxAttempts(TI_Utils.TI_JOB_MAX_ATTEMPTS)
                        .addConstraint(NetworkConstraint.KEY)
@@ -122,7 +125,7 @@ public class TrustedIntroductionsReceiveJob extends BaseJob {
       introducerId = getIntroducerFromRawMessage(messageBody);
     }
     if(!bodyParsed){
-      List<TI_Data> tiData = constructIntroduceesFromTrustedIntrosString(messageBody, timestamp, introducerId);
+      List<TI_Data> tiData = constructIntroduceesFromTrustedIntrosString(messageBody, timestamp);
       if(tiData == null) {
         Log.e(TAG, "Introduction did not parse correctly, aborting!");
         return;
@@ -131,15 +134,15 @@ public class TrustedIntroductionsReceiveJob extends BaseJob {
       bodyParsed = true;
     }
     TI_DatabaseGlue db = SignalDatabase.tiDatabase();
-    for(TI_Data introduction: introductions){
-      long result = db.incomingIntroduction(introduction);
-      if (result == -1){
+    // All introductions are written in one transaction, either all of them made it to the database or none did.
+    List<Long> results = db.incomingIntroductions(introductions);
+    for (int i = 0; i < results.size(); i++){
+      if (results.get(i) == -1){
         // TODO: How to fail gracefully?
-        Log.e(TAG, String.format("Introduction insertion for %s failed...", introduction.getIntroduceeName()));
-        //throw new AssertionError(TAG + String.format("Introduction insertion for %s failed...", introduction.getIntroduceeName()));
+        Log.e(TAG, String.format("Introduction insertion for %s failed...", introductions.get(i).getIntroduceeName()));
       }
-      inserts_succeeded++;
     }
+    inserts_succeeded = results.size();
     Log.i(TAG, "TrustedIntroductionsReceiveJob completed!");
   }
 
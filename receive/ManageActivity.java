@@ -3,10 +3,13 @@ package org.thoughtcrime.securesms.trustedIntroductions.receive;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.view.ActionMode;
 import androidx.appcompat.widget.Toolbar;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
@@ -31,6 +34,7 @@ import org.thoughtcrime.securesms.util.DynamicTheme;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 import static org.thoughtcrime.securesms.trustedIntroductions.receive.ManageListFragment.FORGOTTEN_INTRODUCER;
 
@@ -88,6 +92,7 @@ public class ManageActivity extends PassphraseRequiredActivity {
   private ContactFilterView contactFilterView;
   private ViewPager2        pager;
   private ManageViewModel viewModel;
+  private ActionMode      actionMode;
 
   private final DynamicTheme dynamicTheme = new DynamicNoActionBarTheme();
 
@@ -132,11 +137,85 @@ public class ManageActivity extends PassphraseRequiredActivity {
     new TabLayoutMediator(tabLayout, pager,
                           (tab, position) -> tab.setText(tabTitles.get(position))
     ).attach();
+    // The selection only makes sense on the tab it was made on.
+    pager.registerOnPageChangeCallback(new ViewPager2.OnPageChangeCallback() {
+      @Override public void onPageSelected(int position) {
+        viewModel.clearSelection();
+      }
+    });
+    viewModel.getSelection().observe(this, this::onSelectionChanged);
     getWindow().setSoftInputMode(
         WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN);
   }
 
 
+  private void onSelectionChanged(@NonNull Set<Long> selection){
+    if (selection.isEmpty()) {
+      if (actionMode != null) {
+        actionMode.finish();
+      }
+      return;
+    }
+    if (actionMode == null) {
+      actionMode = startSupportActionMode(new SelectionActionModeCallback());
+    }
+    if (actionMode != null) {
+      actionMode.setTitle(String.valueOf(selection.size()));
+    }
+  }
+
+  /**
+   * Bulk operations on the selected introductions.
+   */
+  private class SelectionActionModeCallback implements ActionMode.Callback {
+
+    private static final int ACCEPT     = 1;
+    private static final int REJECT     = 2;
+    private static final int DELETE     = 3;
+    private static final int SELECT_ALL = 4;
+
+    @Override public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+      menu.add(Menu.NONE, ACCEPT, Menu.NONE, R.string.ManageIntroductionsActivity__Accept_selected);
+      menu.add(Menu.NONE, REJECT, Menu.NONE, R.string.ManageIntroductionsActivity__Reject_selected);
+      menu.add(Menu.NONE, DELETE, Menu.NONE, R.string.delete);
+      menu.add(Menu.NONE, SELECT_ALL, Menu.NONE, android.R.string.selectAll);
+      return true;
+    }
+
+    @Override public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+      return false;
+    }
+
+    @Override public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+      switch (item.getItemId()) {
+        case ACCEPT:
+          viewModel.acceptSelected();
+          return true;
+        case REJECT:
+          viewModel.rejectSelected();
+          return true;
+        case DELETE:
+          viewModel.deleteSelected();
+          return true;
+        case SELECT_ALL:
+          for (Fragment f : getSupportFragmentManager().getFragments()) {
+            // Only the fragment of the current tab is resumed
+            if (f instanceof ManageListFragment && f.isResumed()) {
+              ((ManageListFragment) f).selectAllDisplayed();
+            }
+          }
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override public void onDestroyActionMode(ActionMode mode) {
+      actionMode = null;
+      viewModel.clearSelection();
+    }
+  }
+
   @Override public void onSaveInstanceState(@NonNull Bundle outState) {
     outState.putInt(ACTIVE_TAB, tabLayout.getSelectedTabPosition());
     super.onSaveInstanceState(outState);
@@ -2,6 +2,8 @@ package org.thoughtcrime.securesms.trustedIntroductions.receive;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Build;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -20,6 +22,7 @@ import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.button.MaterialButton;
+import com.google.android.material.color.MaterialColors;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
@@ -30,8 +33,11 @@ import org.thoughtcrime.securesms.trustedIntroductions.TI_Data;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils;
 import org.whispersystems.signalservice.api.util.Preconditions;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import static android.view.View.GONE;
 import static android.view.View.INVISIBLE;
@@ -52,8 +58,14 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
 
   private static final String TAG = String.format(TI_Utils.TI_LOG_TAG, Log.tag(ManageAdapter.class));
 
+  // Partial rebinds, @see getChangePayload. Combined as bit flags.
+  private static final int PAYLOAD_STATE      = 1;
+  private static final int PAYLOAD_INTRODUCER = 1 << 1;
+  private static final int PAYLOAD_SELECTION  = 1 << 2;
+
   private final LayoutInflater layoutInflater;
   private final ManageAdapter.InteractionListener listener;
+  private       Set<Long>                         selection = Collections.emptySet();
 
   ManageAdapter(@NonNull Context context, @NonNull ManageAdapter.InteractionListener listener){
     super(new DiffUtil.ItemCallback<Pair<TI_Data, ManageViewModel.IntroducerInformation>>() {
@@ -75,9 +87,34 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
                oldItem.getPredictedSecurityNumber().equals(newItem.getPredictedSecurityNumber()) &&
                oldItem.getTimestamp() == newItem.getTimestamp();
       }
+
+      /**
+       * User interactions only change the state or forget the introducer, those rows are patched instead of rebound.
+       * @return null if anything else changed, which rebinds the whole row.
+       */
+      @Nullable @Override public Object getChangePayload(@NonNull Pair<TI_Data, ManageViewModel.IntroducerInformation> oldPair, @NonNull Pair<TI_Data, ManageViewModel.IntroducerInformation> newPair) {
+        TI_Data oldItem = oldPair.first;
+        TI_Data newItem = newPair.first;
+        if (!oldItem.withState(newItem.getState()).withIntroducer(newItem.getIntroducerServiceId()).equals(newItem)) {
+          return null;
+        }
+        int payload = 0;
+        if (oldItem.getState() != newItem.getState()) {
+          payload |= PAYLOAD_STATE;
+        }
+        if (!Objects.equals(oldItem.getIntroducerServiceId(), newItem.getIntroducerServiceId())) {
+          payload |= PAYLOAD_INTRODUCER;
+        }
+        return payload == 0 ? null : payload;
+      }
     });
     this.layoutInflater = LayoutInflater.from(context);
     this.listener = listener;
+    setHasStableIds(true);
+  }
+
+  @Override public long getItemId(int position) {
+    return Objects.requireNonNull(getItem(position).first.getId());
   }
 
   @NonNull @Override public IntroductionViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -88,6 +125,37 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
   @Override public void onBindViewHolder(@NonNull IntroductionViewHolder holder, int position) {
     Pair<TI_Data, ManageViewModel.IntroducerInformation> current = getItem(position);
     holder.bind(current.first, current.second);
+    holder.setSelected(selection.contains(current.first.getId()));
+  }
+
+  @Override public void onBindViewHolder(@NonNull IntroductionViewHolder holder, int position, @NonNull List<Object> payloads) {
+    if (payloads.isEmpty()) {
+      onBindViewHolder(holder, position);
+      return;
+    }
+    int payload = 0;
+    for (Object p : payloads) {
+      payload |= (Integer) p;
+    }
+    Pair<TI_Data, ManageViewModel.IntroducerInformation> current = getItem(position);
+    if ((payload & (PAYLOAD_STATE | PAYLOAD_INTRODUCER)) != 0) {
+      holder.rebind(current.first, current.second, (payload & PAYLOAD_INTRODUCER) != 0);
+    }
+    holder.setSelected(selection.contains(current.first.getId()));
+  }
+
+  /**
+   * Only rebinds the rows whose selection changed.
+   */
+  void setSelection(@NonNull Set<Long> newSelection){
+    Set<Long> oldSelection = selection;
+    selection = newSelection;
+    for (int i = 0; i < getItemCount(); i++) {
+      Long id = getItem(i).first.getId();
+      if (oldSelection.contains(id) != newSelection.contains(id)) {
+        notifyItemChanged(i, PAYLOAD_SELECTION);
+      }
+    }
   }
 
   static class IntroductionViewHolder extends RecyclerView.ViewHolder {
@@ -118,6 +186,23 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
       radioGroup.setOnCheckedChangeListener((b, id) -> {
         changeTrust(id == this.accept.getId());
       });
+      // Selection for bulk operations, a long press starts it.
+      itemView.setOnLongClickListener(v -> {
+        listener.select(getIntroductionId());
+        return true;
+      });
+      itemView.setOnClickListener(v -> {
+        if (listener.isSelecting()) {
+          listener.select(getIntroductionId());
+        }
+      });
+    }
+
+    void setSelected(boolean selected){
+      itemView.setActivated(selected);
+      if (Build.VERSION.SDK_INT >= 23) {
+        itemView.setForeground(selected ? new ColorDrawable(MaterialColors.getColor(itemView, android.R.attr.colorControlHighlight)) : null);
+      }
     }
 
     @SuppressLint("RestrictedApi") public void bind(@Nullable TI_Data d, @Nullable ManageViewModel.IntroducerInformation introducerInformation){
@@ -142,6 +227,19 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
       delete.setOnClickListener((b) -> listener.delete(this, data.getIntroducerServiceId()));
     }
 
+    /**
+     * Only updates what may change through user interaction on an already bound row.
+     * @param introducerChanged true if the introducer was forgotten.
+     */
+    void rebind(@NonNull TI_Data d, @NonNull ManageViewModel.IntroducerInformation introducerInformation, boolean introducerChanged){
+      this.data = d;
+      if (introducerChanged) {
+        introducerNumber.setText(introducerInformation.number);
+        introducerName.setText(introducerInformation.name);
+      }
+      changeListitemAppearanceByState(data.getState());
+    }
+
     String getIntroduceeName(){
       return data.getIntroduceeName();
     }
@@ -198,7 +296,7 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
         else throw new AssertionError(TAG + "Illegal statemachine transition for state: " + s.name() + " and new trust: " + trust);
         listener.reject(Objects.requireNonNull(data.getId()));
       }
-      newIntro = changeState(data, newState);
+      newIntro = data.withState(newState);
       data = newIntro; // the only thing that will change based on user interactions is check/uncheck or masking...
     }
 
@@ -306,10 +404,6 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
     }
 
 
-    private TI_Data changeState(TI_Data d, TI_Database.State s){
-      return new TI_Data(d.getId(), s, d.getIntroducerServiceId(), d.getIntroduceeServiceId(), d.getIntroduceeName(), d.getIntroduceeNumber(), d.getIntroduceeIdentityKey(), d.getPredictedSecurityNumber(), d.getTimestamp());
-    }
-
     public void setEnabled(boolean enabled){
       itemView.setEnabled(enabled);
     }
@@ -339,6 +433,9 @@ public class ManageAdapter extends ListAdapter<Pair<TI_Data, ManageViewModel.Int
     void reject(@NonNull Long introductionID);
     void mask(@NonNull ManageAdapter.IntroductionViewHolder item, String introducerServiceID);
     void delete(@NonNull ManageAdapter.IntroductionViewHolder item, String introducerServiceID);
+    // Toggles whether the introduction is selected
+    void select(@NonNull Long introductionID);
+    boolean isSelecting();
   }
 
 }
@@ -7,31 +7,36 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.core.util.Pair;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.lifecycle.ViewModelStoreOwner;
 import androidx.recyclerview.widget.RecyclerView;
-import static org.thoughtcrime.securesms.trustedIntroductions.TI_Utils.splitIntroductionDate;
 import static org.thoughtcrime.securesms.trustedIntroductions.receive.ManageActivity.ActiveTab.NEW;
 
 import com.google.android.material.button.MaterialButton;
 import com.pnikosis.materialishprogress.ProgressWheel;
 
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Data;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils;
+import org.thoughtcrime.securesms.util.Debouncer;
 
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
-import java.util.regex.Pattern;
 
 import androidx.tracing.Trace;
 
@@ -59,6 +64,12 @@ public class ManageListFragment extends Fragment implements DeleteIntroductionDi
   private MaterialButton showStale;
   private boolean sSisFirstInit = true;
 
+  private static final long FILTER_DEBOUNCE_MS          = 150;
+  private static final int  CANCELLATION_CHECK_INTERVAL = 256;
+  private final Debouncer     filterDebouncer  = new Debouncer(FILTER_DEBOUNCE_MS);
+  // Incremented for every filter request, results of older requests are dropped.
+  private final AtomicInteger filterGeneration = new AtomicInteger();
+
   // Because final onCreate in AppCompat dissalows me from using a Fragment Factory, I need to use a Bundle for Arguments.
   static String TYPE_KEY = "type_key";
 
@@ -159,6 +170,16 @@ public class ManageListFragment extends Fragment implements DeleteIntroductionDi
     viewModel.showDistrusted().observe(getViewLifecycleOwner(), state->{
       sRisFirstInit = onFilterStateChanged(showRejected, state, sRisFirstInit);
     });
+    viewModel.getSearchResult().observe(getViewLifecycleOwner(), result -> {
+      if (viewModel.getIntroductions().getValue() != null) {
+        refreshList();
+      }
+    });
+    viewModel.getSelection().observe(getViewLifecycleOwner(), selection -> {
+      if (adapter != null) {
+        adapter.setSelection(selection);
+      }
+    });
     // Introduction Observer
     this.viewModel.getIntroductions().observe(getViewLifecycleOwner(), introductions -> {
       // Screen layout
@@ -259,39 +280,22 @@ public class ManageListFragment extends Fragment implements DeleteIntroductionDi
 
   /**
    * Filters complete introduction list by Tab type, search filter, button selectors and finally sorts.
+   * Runs in the background, gives up as soon as a newer filter request was made.
    * @param introductions All introductions returned by ViewModel.
-   * @param filter The user provided filter.
-   * @return the filtered list appropriate for the fragment depending on tab, button selectors and filter.
+   * @param matches ids of the introductions matching the user provided filter, null if there is no filter.
+   * @param generation of the filter request.
+   * @return the filtered list appropriate for the fragment depending on tab, button selectors and filter, null if the request became stale.
    */
-  private List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> getFiltered(List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> introductions, @Nullable String filter){
+  @WorkerThread
+  private @Nullable List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> getFiltered(List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> introductions, @Nullable Set<Long> matches, int generation){
     List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> filtered = new ArrayList<>();
-    for (Pair<TI_Data, ManageViewModel.IntroducerInformation> p: introductions) {
-      if(isDisplayed(p)){
-        filtered.add(p);
+    for (int i = 0; i < introductions.size(); i++) {
+      if (i % CANCELLATION_CHECK_INTERVAL == 0 && generation != filterGeneration.get()) {
+        return null;
       }
-    }
-    if(filter != null){
-      if(!filter.isEmpty() && filter.compareTo("") != 0){
-        Pattern filterPattern = Pattern.compile("\\A" + filter + ".*", Pattern.CASE_INSENSITIVE);
-        for (Pair<TI_Data, ManageViewModel.IntroducerInformation> p: introductions){
-          TI_Data                     d = p.first;
-          TI_Utils.TimestampDateParts timestampParts = splitIntroductionDate(d.getTimestamp());
-          // Split up for debugging. May be one big expr.
-          boolean matchYear = filterPattern.matcher(timestampParts.year).find();
-          boolean matchMonth = filterPattern.matcher(timestampParts.month).find();
-          boolean matchDay = filterPattern.matcher(timestampParts.day).find();
-          boolean matchHours = filterPattern.matcher(timestampParts.hours).find();
-          boolean matchMinutes = filterPattern.matcher(timestampParts.minutes).find();
-          boolean matchSeconds = filterPattern.matcher(timestampParts.seconds).find();
-          boolean matchIntroduceeName = filterPattern.matcher(d.getIntroduceeName()).find();
-          boolean matchIntroduceeNumber = filterPattern.matcher(d.getIntroduceeNumber()).find();
-          boolean matchIntroducerName = filterPattern.matcher(p.second.name).find();
-          boolean matchIntroducerNumber = filterPattern.matcher(p.second.number).find();
-          if (!(matchYear || matchMonth || matchDay || matchHours || !matchMinutes || matchSeconds || matchIntroduceeName || matchIntroduceeNumber
-                || matchIntroducerName || matchIntroducerNumber)){
-            filtered.remove(p);
-          }
-        }
+      Pair<TI_Data, ManageViewModel.IntroducerInformation> p = introductions.get(i);
+      if(isDisplayed(p) && (matches == null || matches.contains(p.first.getId()))){
+        filtered.add(p);
       }
     }
     return sortIntroductions(filtered);
@@ -324,25 +328,75 @@ public class ManageListFragment extends Fragment implements DeleteIntroductionDi
 
   void refreshList(){
     if(adapter != null){
-      List l = viewModel.getIntroductions().getValue();
+      List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> l = viewModel.getIntroductions().getValue();
       if(l == null){
         Log.e(TAG, "Introductions list not yet loaded when calling refreshList!");
         return;
       }
-      adapter.submitList(getFiltered(viewModel.getIntroductions().getValue(), viewModel.getTextFilter().getValue()));
+      String filter = viewModel.getTextFilter().getValue();
+      Set<Long> matches = null;
+      if (filter != null && !filter.trim().isEmpty()) {
+        ManageViewModel.SearchResult result = viewModel.getSearchResult().getValue();
+        if (result == null || !result.query.equals(filter)) {
+          // Refreshed again once the search for the current filter is done.
+          return;
+        }
+        matches = result.introductionIds;
+      }
+      submitFiltered(l, matches);
     }
   }
 
   public void onFilterChanged(String filter) {
     if(adapter != null){
-      viewModel.setTextFilter(filter);
-      List l = viewModel.getIntroductions().getValue();
-      if(l == null){
-        Log.e(TAG, "Introductions list not yet loaded when calling onFilterChanged!");
+      // Only search once the user stopped typing.
+      filterDebouncer.publish(() -> viewModel.setTextFilter(filter));
+    }
+  }
+
+  /**
+   * Filters in the background and submits the result, unless another request was made in the meantime.
+   */
+  @MainThread
+  private void submitFiltered(@NonNull List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> introductions, @Nullable Set<Long> matches){
+    int generation = filterGeneration.incrementAndGet();
+    // The view model replaces (and in places modifies) its list, filter a snapshot.
+    List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> snapshot = new ArrayList<>(introductions);
+    SignalExecutors.BOUNDED.execute(() -> {
+      List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> filtered = getFiltered(snapshot, matches, generation);
+      if (filtered == null) {
         return;
       }
-      adapter.submitList(getFiltered(viewModel.getIntroductions().getValue(), filter));
+      ThreadUtil.runOnMain(() -> {
+        if (adapter != null && generation == filterGeneration.get()) {
+          adapter.submitList(filtered);
+        }
+      });
+    });
+  }
+
+  /**
+   * Selects every introduction currently displayed, e.g. all pending introductions of the introducer the user searched for.
+   */
+  @MainThread
+  void selectAllDisplayed(){
+    if (adapter == null) {
+      return;
+    }
+    List<Long> displayed = new ArrayList<>(adapter.getItemCount());
+    for (Pair<TI_Data, ManageViewModel.IntroducerInformation> p : adapter.getCurrentList()) {
+      displayed.add(p.first.getId());
     }
+    viewModel.selectAll(displayed);
+  }
+
+  @Override
+  public void onDestroyView(){
+    filterDebouncer.clear();
+    // Drops any filter result still in flight.
+    filterGeneration.incrementAndGet();
+    adapter = null;
+    super.onDestroyView();
   }
 
   /**
@@ -392,5 +446,14 @@ public class ManageListFragment extends Fragment implements DeleteIntroductionDi
       DeleteIntroductionDialog.show(c, item.getIntroductionId(), item.getIntroduceeName(), introducerName, item.getDate(), deleteHandler);
     }
 
+    @Override public void select(@NonNull Long introductionId) {
+      viewModel.toggleSelected(introductionId);
+    }
+
+    @Override public boolean isSelecting() {
+      Set<Long> selection = viewModel.getSelection().getValue();
+      return selection != null && !selection.isEmpty();
+    }
+
   }
 }
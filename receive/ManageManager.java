@@ -1,7 +1,8 @@
 package org.thoughtcrime.securesms.trustedIntroductions.receive;
 
 import androidx.annotation.NonNull;
-import androidx.core.util.Consumer;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.core.util.Pair;
 
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -9,13 +10,19 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Data;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils;
+import org.thoughtcrime.securesms.trustedIntroductions.glue.RecipientTableGlue;
 import org.thoughtcrime.securesms.trustedIntroductions.glue.TI_DatabaseGlue;
 import org.thoughtcrime.securesms.trustedIntroductions.database.TI_Database;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import static org.webrtc.ContextUtils.getApplicationContext;
 
@@ -23,49 +30,136 @@ public class ManageManager {
 
   private static final String TAG =  String.format(TI_Utils.TI_LOG_TAG, Log.tag(ManageManager.class));
 
+  static final int PAGE_SIZE = 200;
+
   @NonNull private final String      forgottenPlaceholder;
   // Dependency injection
   private final          TI_DatabaseGlue tdb;
 
+  // Introducer service id -> what is displayed for them. A handful of introducers usually account for most introductions.
+  private final Map<String, ManageViewModel.IntroducerInformation> introducers = new HashMap<>();
+  private final ManageViewModel.IntroducerInformation              forgotten;
+
   ManageManager(@NonNull TI_DatabaseGlue tdb, @NonNull String forgottenPlaceholder){
     this.tdb = tdb;
     this.forgottenPlaceholder = forgottenPlaceholder;
+    this.forgotten = new ManageViewModel.IntroducerInformation(forgottenPlaceholder, forgottenPlaceholder);
   }
 
-  void getIntroductions(@NonNull Consumer<List<Pair<TI_Data, ManageViewModel.IntroducerInformation>>> listConsumer){
+  /**
+   * Loads all displayable introductions page by page, oldest first. Every page is handed to pageConsumer as soon as it is read,
+   * such that the first introductions can be shown without waiting for the whole history.
+   * pageConsumer is called on a background thread, at least once (with an empty page if there are no introductions), the last call is flagged.
+   */
+  void getIntroductions(@NonNull PageConsumer pageConsumer){
     SignalExecutors.BOUNDED.execute(() -> {
+      long afterTimestamp = Long.MIN_VALUE;
+      long afterId        = Long.MIN_VALUE;
+      while (true) {
+        // Pull introductions out of the database, already sorted by date
+        ArrayList<TI_Data> introductions = new ArrayList<>(PAGE_SIZE);
+        try (TI_Database.IntroductionReader reader = tdb.getDisplayableIntroductionsPage(afterTimestamp, afterId, PAGE_SIZE)) {
+          while(reader.hasNext()){
+            introductions.add(reader.getNext());
+          }
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to close introduction reader", e);
+        }
+        boolean lastPage = introductions.size() < PAGE_SIZE;
+        // The last page is handed out even if it is empty, such that the consumer learns that paging is done.
+        pageConsumer.accept(resolveIntroducers(introductions), lastPage);
+        if (lastPage) {
+          // Not needed for displaying, only for searching by renamed introducers.
+          tdb.refreshSearchIntroducers();
+          return;
+        }
+        TI_Data last = introductions.get(introductions.size() - 1);
+        afterTimestamp = last.getTimestamp();
+        afterId = Objects.requireNonNull(last.getId());
+      }
+    });
+  }
+
+  interface PageConsumer {
+    void accept(@NonNull List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> page, boolean last);
+  }
 
-      // Pull introductions out of the database
-      TI_Database.IntroductionReader reader        = tdb.getAllDisplayableIntroductions();
-      ArrayList<TI_Data>             introductions = new ArrayList<>();
+  /**
+   * Reads and resolves the displayable introductions among ids, for applying changes of the database.
+   */
+  @WorkerThread
+  List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> getIntroductions(@NonNull Collection<Long> ids){
+    ArrayList<TI_Data> introductions = new ArrayList<>(ids.size());
+    try (TI_Database.IntroductionReader reader = tdb.getDisplayableIntroductions(ids)) {
       while(reader.hasNext()){
         introductions.add(reader.getNext());
       }
-      // sort by date
-      Collections.sort(introductions, Comparator.comparing(TI_Data::getTimestamp));
-      ArrayList<Pair<TI_Data, ManageViewModel.IntroducerInformation>> result = new ArrayList<>();
-      ManageViewModel.IntroducerInformation i = null;
-      for (TI_Data d: introductions) {
-        if(d.getIntroducerServiceId() == null){
-          i = new ManageViewModel.IntroducerInformation(forgottenPlaceholder, forgottenPlaceholder);
-        } else {
-          try {
-            Recipient r      = Recipient.live(TI_Utils.getRecipientIdOrUnknown(d.getIntroducerServiceId())).resolve();
-            String    number = r.getE164().orElse("");
-            // TODO: using getApplication context because the context doesn't matter... (22-10-06)
-            // It just circularly gets passed around between methods in the Recipient but is never used for anything.
-            i = new ManageViewModel.IntroducerInformation(r.getDisplayName(getApplicationContext()), number);
-          } catch (Exception e) {
-            e.printStackTrace();
-            Log.e(TAG, e.getMessage());
-          }
-        } // TODO: this should not happen
-        if (i != null) {
-          result.add(new Pair<>(d, i));
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close introduction reader", e);
+    }
+    return resolveIntroducers(introductions);
+  }
+
+  void addChangeListener(@NonNull TI_Database.ChangeListener listener){
+    tdb.addChangeListener(listener);
+  }
+
+  void removeChangeListener(@NonNull TI_Database.ChangeListener listener){
+    tdb.removeChangeListener(listener);
+  }
+
+  /**
+   * @return ids of the introductions matching query, best match first.
+   */
+  @WorkerThread
+  List<Long> searchIntroductions(@NonNull String query){
+    return tdb.searchIntroductions(query);
+  }
+
+  /**
+   * Pairs every introduction with the information about its introducer.
+   * Introducers are resolved in one batched query per page, only for those that are not cached yet.
+   * Only introducers that resolved are cached, the others are shown as unknown and tried again with the next page.
+   */
+  private synchronized List<Pair<TI_Data, ManageViewModel.IntroducerInformation>> resolveIntroducers(List<TI_Data> introductions){
+    Set<String> unresolved = new LinkedHashSet<>();
+    for (TI_Data d: introductions) {
+      String introducerServiceId = d.getIntroducerServiceId();
+      if (!isForgotten(introducerServiceId) && !introducers.containsKey(introducerServiceId)) {
+        unresolved.add(introducerServiceId);
+      }
+    }
+    if (!unresolved.isEmpty()) {
+      try {
+        RecipientTableGlue.getRecordsForReceivingTI(new ArrayList<>(unresolved)).forEach((recipientId, record) -> {
+          Recipient r      = Recipient.resolved(recipientId);
+          String    number = r.getE164().orElse("");
+          // TODO: using getApplication context because the context doesn't matter... (22-10-06)
+          // It just circularly gets passed around between methods in the Recipient but is never used for anything.
+          introducers.put(record.getAci().toString(), new ManageViewModel.IntroducerInformation(r.getDisplayName(getApplicationContext()), number));
+        });
+      } catch (Exception e) {
+        Log.w(TAG, "Failed to resolve " + unresolved.size() + " introducers.", e);
+      }
+    }
+    ArrayList<Pair<TI_Data, ManageViewModel.IntroducerInformation>> result = new ArrayList<>(introductions.size());
+    ManageViewModel.IntroducerInformation unknown = null;
+    for (TI_Data d: introductions) {
+      ManageViewModel.IntroducerInformation i = isForgotten(d.getIntroducerServiceId()) ? forgotten : introducers.get(d.getIntroducerServiceId());
+      if (i == null) {
+        // Introducers we (currently) have no recipient for
+        if (unknown == null) {
+          unknown = new ManageViewModel.IntroducerInformation(Recipient.UNKNOWN.getDisplayName(getApplicationContext()), "");
         }
+        i = unknown;
       }
-      listConsumer.accept(result);
-    });
+      result.add(new Pair<>(d, i));
+    }
+    return result;
+  }
+
+  private static boolean isForgotten(@Nullable String introducerServiceId){
+    return introducerServiceId == null || introducerServiceId.equals(TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID);
   }
 
 }
@@ -1,5 +1,6 @@
 package org.thoughtcrime.securesms.trustedIntroductions.receive;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
@@ -9,6 +10,7 @@ import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.core.util.Pair;
 
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.SignalDatabase;
@@ -17,8 +19,15 @@ import org.thoughtcrime.securesms.trustedIntroductions.TI_Data;
 import org.thoughtcrime.securesms.trustedIntroductions.TI_Utils;
 import org.whispersystems.signalservice.api.util.Preconditions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 
 public class ManageViewModel extends ViewModel {
@@ -27,9 +36,20 @@ public class ManageViewModel extends ViewModel {
 
   private final ManageManager             manager;
   private final MutableLiveData<String>   filter;
+  // Introduction id -> introduction, in the order they were loaded. Only touched on the main thread, observers get immutable snapshots.
+  private final LinkedHashMap<Long, Pair<TI_Data, IntroducerInformation>> store = new LinkedHashMap<>();
   private final MutableLiveData<List<Pair<TI_Data, IntroducerInformation>>> introductions;
+  private final MutableLiveData<SearchResult> searchResult = new MutableLiveData<>(null);
+  // Ids of the introductions selected for a bulk operation
+  private final MutableLiveData<Set<Long>> selection = new MutableLiveData<>(Collections.emptySet());
   @NonNull      String                                                      forgottenPlaceholder;
   private boolean                  introductionsLoaded;
+  private final TI_Database.ChangeListener changeListener = this::onIntroductionsChanged;
+  // Changes of introductions not in the store, in the order they were made. A page or an inserted row read before the change
+  // committed may still arrive, the changes are replayed onto it. Main thread only.
+  private final Map<Long, List<TI_Database.Change>> unappliedChanges = new HashMap<>();
+  private boolean pagingDone;
+  private int     rowReadsInFlight;
   // Filters
   private MutableLiveData<Boolean> showTrusted    = new MutableLiveData<>(true);
   private MutableLiveData<Boolean> showDistrusted = new MutableLiveData<>(true);
@@ -77,8 +97,18 @@ public class ManageViewModel extends ViewModel {
     return showDistrusted;
   }
 
+  /**
+   * Searches the full text index of the introductions, @see getSearchResult
+   */
   public void setTextFilter(String filter) {
     this.filter.setValue(filter);
+    if (filter == null || filter.trim().isEmpty()) {
+      searchResult.setValue(null);
+      return;
+    }
+    SignalExecutors.BOUNDED.execute(() -> {
+      searchResult.postValue(new SearchResult(filter, new HashSet<>(manager.searchIntroductions(filter))));
+    });
   }
 
   public LiveData<String> getTextFilter(){
@@ -86,17 +116,186 @@ public class ManageViewModel extends ViewModel {
   }
 
   // Introductions
+
+  /**
+   * Loads the introductions once, afterwards the store follows the changes of the database.
+   */
+  @MainThread
   public void loadIntroductions(){
-    manager.getIntroductions(introductions::postValue);
+    if (introductionsLoaded) {
+      return;
+    }
+    // Listen before reading, such that nothing committed in between is missed. Changes to rows of pages that are not appended yet are held back, @see unappliedChanges
+    manager.addChangeListener(changeListener);
+    manager.getIntroductions((page, last) -> ThreadUtil.runOnMain(() -> appendIntroductions(page, last)));
     introductionsLoaded = true;
   }
 
+  /**
+   * Pages arrive while the user may already be modifying earlier introductions, they are added to the store behind whatever it holds.
+   * Introductions already in the store came from a change at least as recent as the page and are kept.
+   */
+  @MainThread
+  private void appendIntroductions(@NonNull List<Pair<TI_Data, IntroducerInformation>> page, boolean last){
+    addRows(page, false);
+    if (last) {
+      pagingDone = true;
+      dropUnappliedChanges();
+    }
+    publish();
+  }
+
+  /**
+   * Only new introductions are read from the database, updates and deletions are applied from the change itself.
+   */
+  @WorkerThread
+  private void onIntroductionsChanged(@NonNull List<TI_Database.Change> changes){
+    List<Long> inserted = new ArrayList<>();
+    for (TI_Database.Change c : changes) {
+      if (c.kind == TI_Database.Change.Kind.INSERTED) {
+        inserted.add(c.introductionId);
+      }
+    }
+    ThreadUtil.runOnMain(() -> {
+      applyChanges(changes);
+      if (inserted.isEmpty()) {
+        return;
+      }
+      rowReadsInFlight++;
+      SignalExecutors.BOUNDED.execute(() -> {
+        List<Pair<TI_Data, IntroducerInformation>> rows = manager.getIntroductions(inserted);
+        ThreadUtil.runOnMain(() -> {
+          rowReadsInFlight--;
+          if (addRows(rows, true)) {
+            publish();
+          }
+          dropUnappliedChanges();
+        });
+      });
+    });
+  }
+
+  /**
+   * Our own modifications come back as changes as well, those are already in the store and do not publish again.
+   * Changes of introductions that are not in the store are held back while rows are still being read, the row may have been read before the change.
+   */
+  @MainThread
+  private void applyChanges(@NonNull List<TI_Database.Change> changes){
+    boolean modified = false;
+    for (TI_Database.Change c : changes) {
+      if (c.kind == TI_Database.Change.Kind.INSERTED) {
+        // Read from the database, @see onIntroductionsChanged
+        continue;
+      }
+      Pair<TI_Data, IntroducerInformation> current = store.get(c.introductionId);
+      if (current == null) {
+        // Not loaded yet, or not displayable.
+        if (!pagingDone || rowReadsInFlight > 0) {
+          unappliedChanges.computeIfAbsent(c.introductionId, k -> new ArrayList<>()).add(c);
+        }
+        continue;
+      }
+      Pair<TI_Data, IntroducerInformation> changed = applyChange(current, c);
+      if (changed == null) {
+        store.remove(c.introductionId);
+        modified = true;
+      } else if (changed != current) {
+        store.put(c.introductionId, changed);
+        modified = true;
+      }
+    }
+    if (modified) {
+      publish();
+    }
+  }
+
+  /**
+   * @return the introduction after the change, null if it was deleted. current itself if the change did not modify it.
+   */
+  @MainThread
+  private @Nullable Pair<TI_Data, IntroducerInformation> applyChange(@NonNull Pair<TI_Data, IntroducerInformation> current, @NonNull TI_Database.Change c){
+    switch (c.kind) {
+      case DELETED:
+        return null;
+      case UPDATED:
+        if (current.first.getState() != c.state) {
+          current = new Pair<>(current.first.withState(Objects.requireNonNull(c.state)), current.second);
+        }
+        // Introducers are only ever forgotten, e.g. from another screen.
+        if (c.introducerServiceId != null && !c.introducerServiceId.equals(current.first.getIntroducerServiceId())) {
+          current = new Pair<>(current.first.withIntroducer(c.introducerServiceId), new IntroducerInformation(forgottenPlaceholder, forgottenPlaceholder));
+        }
+        return current;
+      default:
+        return current;
+    }
+  }
+
+  /**
+   * Adds rows read from the database to the store and replays the changes that were held back for them.
+   * @param refresh false to keep rows already in the store as they are. Else they take the read row, but keep state and introducer:
+   *                those are only modified by changes, which the store already follows for the row.
+   * @return if the store was modified.
+   */
+  @MainThread
+  private boolean addRows(@NonNull List<Pair<TI_Data, IntroducerInformation>> rows, boolean refresh){
+    boolean modified = false;
+    for (Pair<TI_Data, IntroducerInformation> row : rows) {
+      Long id = Objects.requireNonNull(row.first.getId());
+      Pair<TI_Data, IntroducerInformation> current = store.get(id);
+      if (current != null) {
+        if (refresh) {
+          store.put(id, new Pair<>(row.first.withState(current.first.getState()).withIntroducer(current.first.getIntroducerServiceId()), current.second));
+          modified = true;
+        }
+        continue;
+      }
+      List<TI_Database.Change> unapplied = unappliedChanges.remove(id);
+      if (unapplied != null) {
+        for (TI_Database.Change c : unapplied) {
+          row = applyChange(row, c);
+          if (row == null) {
+            break;
+          }
+        }
+      }
+      if (row != null) {
+        store.put(id, row);
+        modified = true;
+      }
+    }
+    return modified;
+  }
+
+  /**
+   * Once all pages are in and no inserted rows are being read, nothing the held back changes could apply to can arrive anymore.
+   */
+  @MainThread
+  private void dropUnappliedChanges(){
+    if (pagingDone && rowReadsInFlight == 0) {
+      unappliedChanges.clear();
+    }
+  }
+
+  @Override protected void onCleared(){
+    manager.removeChangeListener(changeListener);
+  }
+
+  /**
+   * Hands an immutable snapshot of the store to the observers.
+   */
+  @MainThread
+  private void publish(){
+    introductions.setValue(Collections.unmodifiableList(new ArrayList<>(store.values())));
+  }
+
   public boolean introductionsLoaded(){
     return introductionsLoaded;
   }
 
+  @MainThread
   void deleteIntroduction(@NonNull Long introductionId){
-    iterateAndModify(introductionId, new Modify() {
+    modify(introductionId, new Modify() {
       @Nullable @Override public Pair<TI_Data, IntroducerInformation> modifyIntroductionItem(Pair<TI_Data, IntroducerInformation> introductionItem) {
         return null;
       }
@@ -112,12 +311,11 @@ public class ManageViewModel extends ViewModel {
     });
   }
 
+  @MainThread
   void forgetIntroducer(@NonNull Long introductionId){
-    iterateAndModify(introductionId, new Modify() {
+    modify(introductionId, new Modify() {
       @Nullable @Override public Pair<TI_Data, IntroducerInformation> modifyIntroductionItem(Pair<TI_Data, IntroducerInformation> introductionItem) {
-        TI_Data oldIntro = introductionItem.first;
-        TI_Data newIntroduction = new TI_Data(oldIntro.getId(), oldIntro.getState(), TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID, oldIntro.getIntroduceeServiceId(), oldIntro.getIntroduceeName(), oldIntro.getIntroduceeNumber(), oldIntro.getIntroduceeIdentityKey(), oldIntro.getPredictedSecurityNumber(), oldIntro.getTimestamp());
-        return new Pair<>(newIntroduction, new IntroducerInformation(forgottenPlaceholder, forgottenPlaceholder));
+        return new Pair<>(introductionItem.first.withIntroducer(TI_Database.UNKNOWN_INTRODUCER_SERVICE_ID), new IntroducerInformation(forgottenPlaceholder, forgottenPlaceholder));
       }
 
       @WorkerThread @Override public boolean databaseCall(TI_Data introduction) {
@@ -130,13 +328,14 @@ public class ManageViewModel extends ViewModel {
     });
   }
 
+  @MainThread
   void acceptIntroduction(@NonNull Long introductionId){
-      iterateAndModify(introductionId, new Modify() {
+      modify(introductionId, new Modify() {
         @Nullable @Override public Pair<TI_Data, IntroducerInformation> modifyIntroductionItem(Pair<TI_Data, IntroducerInformation> introductionItem) {
-          TI_Data oldIntroduction = introductionItem.first;
-          TI_Data newIntroduction = new TI_Data(oldIntroduction.getId(), TI_Database.State.ACCEPTED, oldIntroduction.getIntroducerServiceId(), oldIntroduction.getIntroduceeServiceId(), oldIntroduction
-              .getIntroduceeName(), oldIntroduction.getIntroduceeNumber(), oldIntroduction.getIntroduceeIdentityKey(), oldIntroduction.getPredictedSecurityNumber(), oldIntroduction.getTimestamp());
-          return new Pair<>(newIntroduction, introductionItem.second);
+          // Turned stale since it was displayed, the database skips it as well.
+          if (introductionItem.first.getState().isStale()) return introductionItem;
+          // Like the database, @see TI_Database.acceptIntroduction
+          return new Pair<>(introductionItem.first.withState(introductionItem.first.getState().withTrust(true)), introductionItem.second);
         }
 
         @Override public boolean databaseCall(TI_Data introduction) {
@@ -149,13 +348,12 @@ public class ManageViewModel extends ViewModel {
       });
   }
 
+  @MainThread
   void rejectIntroduction(@NonNull Long introductionId){
-    iterateAndModify(introductionId, new Modify() {
+    modify(introductionId, new Modify() {
       @Nullable @Override public Pair<TI_Data, IntroducerInformation> modifyIntroductionItem(Pair<TI_Data, IntroducerInformation> introductionItem) {
-        TI_Data oldIntroduction = introductionItem.first;
-        TI_Data newIntroduction = new TI_Data(oldIntroduction.getId(), TI_Database.State.REJECTED, oldIntroduction.getIntroducerServiceId(), oldIntroduction.getIntroduceeServiceId(), oldIntroduction
-            .getIntroduceeName(), oldIntroduction.getIntroduceeNumber(), oldIntroduction.getIntroduceeIdentityKey(), oldIntroduction.getPredictedSecurityNumber(), oldIntroduction.getTimestamp());
-        return new Pair<>(newIntroduction, introductionItem.second);
+        if (introductionItem.first.getState().isStale()) return introductionItem;
+        return new Pair<>(introductionItem.first.withState(introductionItem.first.getState().withTrust(false)), introductionItem.second);
       }
 
       @Override public boolean databaseCall(TI_Data introduction) {
@@ -168,35 +366,122 @@ public class ManageViewModel extends ViewModel {
     });
   }
 
+  // Selection
+
+  public LiveData<Set<Long>> getSelection(){
+    return selection;
+  }
+
+  @MainThread
+  void toggleSelected(@NonNull Long introductionId){
+    Set<Long> selected = new HashSet<>(Objects.requireNonNull(selection.getValue()));
+    if (!selected.remove(introductionId)) {
+      selected.add(introductionId);
+    }
+    selection.setValue(Collections.unmodifiableSet(selected));
+  }
+
+  @MainThread
+  void selectAll(@NonNull List<Long> introductionIds){
+    Set<Long> selected = new HashSet<>(Objects.requireNonNull(selection.getValue()));
+    selected.addAll(introductionIds);
+    selection.setValue(Collections.unmodifiableSet(selected));
+  }
+
+  @MainThread
+  void clearSelection(){
+    if (!Objects.requireNonNull(selection.getValue()).isEmpty()) {
+      selection.setValue(Collections.emptySet());
+    }
+  }
+
+  // Bulk operations on the selection, each is written in a single transaction.
+
+  @MainThread
+  void acceptSelected(){
+    changeTrustOfSelected(true);
+  }
+
+  @MainThread
+  void rejectSelected(){
+    changeTrustOfSelected(false);
+  }
+
+  @MainThread
+  void deleteSelected(){
+    List<Long> deleted = new ArrayList<>();
+    for (Long introductionId : Objects.requireNonNull(selection.getValue())) {
+      if (store.remove(introductionId) != null) {
+        deleted.add(introductionId);
+      }
+    }
+    clearSelection();
+    if (deleted.isEmpty()) {
+      return;
+    }
+    publish();
+    SignalExecutors.BOUNDED.execute(() -> {
+      List<Long> res = SignalDatabase.tiDatabase().deleteIntroductions(deleted);
+      if (res.size() != deleted.size()) {
+        Log.e(TAG, "Deleted " + res.size() + " of " + deleted.size() + " selected introductions!");
+      }
+    });
+  }
+
+  /**
+   * Stale introductions and those already in the requested state are skipped, like they are for a single introduction.
+   */
+  @MainThread
+  private void changeTrustOfSelected(boolean trust){
+    List<Long> changed = new ArrayList<>();
+    for (Long introductionId : Objects.requireNonNull(selection.getValue())) {
+      Pair<TI_Data, IntroducerInformation> current = store.get(introductionId);
+      if (current == null || current.first.getState().isStale()) {
+        continue;
+      }
+      TI_Database.State newState = current.first.getState().withTrust(trust);
+      if (newState != current.first.getState()) {
+        store.put(introductionId, new Pair<>(current.first.withState(newState), current.second));
+        changed.add(introductionId);
+      }
+    }
+    clearSelection();
+    if (changed.isEmpty()) {
+      return;
+    }
+    publish();
+    SignalExecutors.BOUNDED.execute(() -> {
+      List<Long> res = trust ? SignalDatabase.tiDatabase().acceptIntroductions(changed) : SignalDatabase.tiDatabase().rejectIntroductions(changed);
+      if (res.size() != changed.size()) {
+        // Some turned stale in the meantime, their change brings the store up to date.
+        Log.w(TAG, "Changed the state of " + res.size() + " of " + changed.size() + " selected introductions.");
+      }
+    });
+  }
+
   /**
-   * Generic iterator for manipulating the introductions list
+   * Replaces (or removes) a single introduction in the store, in place, and writes the change to the database in the background.
    * @param introductionId which introduction to manipulate
    * @param m function handles for modification and database call
    * Does not modify the original introduction
    */
-  private void iterateAndModify(@NonNull Long introductionId, Modify m){
-    List<Pair<TI_Data, IntroducerInformation>> all = introductions.getValue();
-    Pair<TI_Data, IntroducerInformation> current = all.get(0);
-    int i = 1;
-    while(!current.first.getId().equals(introductionId) && i < all.size()){
-      current = all.get(i++);
-    }
-    i--;
-    if(!current.first.getId().equals(introductionId)){
-      throw new AssertionError(TAG +": the introduction id was not present in the viewModels List");
-    }
-    all.remove(i);
-    // This needs to happen before current is potentially deleted
-    TI_Data modifiedIntroduction = current.first;
-    current = m.modifyIntroductionItem(current);
-    if(current != null){
-      // only reassign if current was not deleted
-      modifiedIntroduction = current.first;
-      // TODO: Missing differentiation between NEW and other two screentypes
-      all.add(current);
-    } // else don't add back to list
-    final TI_Data finalIntroduction = modifiedIntroduction;
-    introductions.postValue(all);
+  @MainThread
+  private void modify(@NonNull Long introductionId, Modify m){
+    Pair<TI_Data, IntroducerInformation> current = store.get(introductionId);
+    if(current == null){
+      throw new AssertionError(TAG +": the introduction id was not present in the viewModels store");
+    }
+    Pair<TI_Data, IntroducerInformation> modified = m.modifyIntroductionItem(current);
+    // Deletions still need the original introduction for the database call
+    final TI_Data finalIntroduction;
+    if(modified != null){
+      store.put(introductionId, modified);
+      finalIntroduction = modified.first;
+    } else {
+      store.remove(introductionId);
+      finalIntroduction = current.first;
+    }
+    publish();
     Log.i(TAG, "Introduction modification complete!");
     SignalExecutors.BOUNDED.execute(() -> {
       boolean res = m.databaseCall(finalIntroduction);
@@ -221,6 +506,24 @@ public class ManageViewModel extends ViewModel {
     return introductions;
   }
 
+  /**
+   * @return the introductions matching the current text filter, null if there is none.
+   * May lag behind getTextFilter() while the search is running, compare SearchResult.query.
+   */
+  public LiveData<SearchResult> getSearchResult() {
+    return searchResult;
+  }
+
+  static class SearchResult {
+    final String    query;
+    final Set<Long> introductionIds;
+
+    SearchResult(@NonNull String query, @NonNull Set<Long> introductionIds){
+      this.query = query;
+      this.introductionIds = introductionIds;
+    }
+  }
+
   static class IntroducerInformation {
     String name;
     String number;